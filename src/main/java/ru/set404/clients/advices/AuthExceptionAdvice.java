@@ -11,6 +11,8 @@ import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import ru.set404.clients.exceptions.PasswordEncoderBusyException;
+import ru.set404.clients.exceptions.TooManyLoginAttemptsException;
 
 @ControllerAdvice
 public class AuthExceptionAdvice {
@@ -23,6 +25,22 @@ public class AuthExceptionAdvice {
 
     }
 
+    @ExceptionHandler(value = {TooManyLoginAttemptsException.class})
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    public ResponseEntity<Object> tooManyLoginAttemptsException(TooManyLoginAttemptsException ex) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, ex.getRetryAfter().toSeconds())));
+        return new ResponseEntity<>(new ErrorMessage(ex.getMessage()), headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    @ExceptionHandler(value = {PasswordEncoderBusyException.class})
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public ResponseEntity<Object> passwordEncoderBusyException(PasswordEncoderBusyException ex) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>(new ErrorMessage(ex.getMessage()), headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @ExceptionHandler(value = {JwtException.class})
     @ResponseStatus(HttpStatus.FORBIDDEN)
     public ResponseEntity<Object> handleExpiredJwtException(ExpiredJwtException ex) {
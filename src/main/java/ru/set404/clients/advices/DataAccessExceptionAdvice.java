@@ -0,0 +1,34 @@
+package ru.set404.clients.advices;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springdoc.api.ErrorMessage;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@Slf4j
+@ControllerAdvice
+public class DataAccessExceptionAdvice {
+
+    @ExceptionHandler(value = {TransientDataAccessException.class, DataAccessResourceFailureException.class})
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public ResponseEntity<Object> databaseUnavailableException(DataAccessException ex) {
+        log.warn("Database is not available: {}", ex.getMessage());
+        return new ResponseEntity<>(new ErrorMessage("Service is temporarily unavailable, try again later"),
+                new HttpHeaders(), HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(value = {DataAccessException.class})
+    @ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
+    public ResponseEntity<Object> dataAccessException(DataAccessException ex) {
+        log.error("Database request failed", ex);
+        return new ResponseEntity<>(new ErrorMessage("Internal server error"),
+                new HttpHeaders(), HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.set404.clients.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.repositories.TherapistsRepository;
+import ru.set404.clients.services.CalendarEngine;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the availability caches for the next days of every therapist once the data is loaded, so the
+ * first requests after a deploy do not all go to the database. The instance reports itself as not ready
+ * while this runs; Boot only reports it ready after every ApplicationReadyEvent listener has returned.
+ */
+@Slf4j
+@Component
+public class AvailabilityWarmUp {
+    private static final int PRELOAD_BATCH = 1000;
+
+    private final TherapistsRepository repository;
+    private final CalendarEngine calendarEngine;
+    private final ApplicationEventPublisher publisher;
+    private final int days;
+    private final int threads;
+    private final Duration timeout;
+
+    public AvailabilityWarmUp(TherapistsRepository repository, CalendarEngine calendarEngine,
+                              ApplicationEventPublisher publisher,
+                              @Value("${clients.warm-up.days:7}") int days,
+                              @Value("${clients.warm-up.threads:4}") int threads,
+                              @Value("${clients.warm-up.timeout:60s}") Duration timeout) {
+        this.repository = repository;
+        this.calendarEngine = calendarEngine;
+        this.publisher = publisher;
+        this.days = days;
+        this.threads = threads;
+        this.timeout = timeout;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(1)
+    public void onApplicationReady() {
+        AvailabilityChangeEvent.publish(publisher, this, ReadinessState.REFUSING_TRAFFIC);
+        try {
+            warmUp();
+        } finally {
+            AvailabilityChangeEvent.publish(publisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+
+    /**
+     * Computes the free times of each of the next days and the free dates of the months they fall in.
+     * Gives up after the timeout, what is not warm by then is loaded by the requests themselves.
+     */
+    public void warmUp() {
+        if (days <= 0)
+            return;
+        long started = System.nanoTime();
+        LocalDate today = LocalDate.now();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Long> therapistIds = List.of();
+        try {
+            therapistIds = repository.findTherapistIdsWithAvailability(today);
+            for (int from = 0; from < therapistIds.size(); from += PRELOAD_BATCH)
+                calendarEngine.preload(therapistIds.subList(from, Math.min(from + PRELOAD_BATCH, therapistIds.size())),
+                        today, today.plusDays(days));
+
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Long therapistId : therapistIds) {
+                tasks.add(executor.submit(() -> {
+                    for (int day = 0; day < days; day++) {
+                        LocalDate date = today.plusDays(day);
+                        calendarEngine.findAvailableTimes(therapistId, date);
+                        if (day == 0 || date.getDayOfMonth() == 1)
+                            calendarEngine.findAvailableDates(therapistId, date);
+                    }
+                }));
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS))
+                log.warn("Availability warm-up did not finish in {}, continuing with a partly warm cache", timeout);
+            for (Future<?> task : tasks) {
+                if (task.isDone() && !task.isCancelled()) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        log.warn("Availability warm-up failed for a therapist", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.warn("Availability warm-up failed, continuing with a cold cache", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("Warmed availability of {} therapists for {} days in {} ms", therapistIds.size(), days,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+}
@@ -1,14 +1,19 @@
 package ru.set404.clients.config;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
 import org.springframework.stereotype.Component;
 
 import javax.sql.DataSource;
+import java.util.List;
 
+@Slf4j
 @Component
 public class InitializeData {
 
@@ -16,8 +21,32 @@ public class InitializeData {
     private DataSource dataSource;
 
     @EventListener(ApplicationReadyEvent.class)
+    @Order(0)
     public void loadData() {
         ResourceDatabasePopulator resourceDatabasePopulator = new ResourceDatabasePopulator(true, true, "UTF-8", new ClassPathResource("data.sql"));
         resourceDatabasePopulator.execute(dataSource);
+        migrate("migrate-clients.sql");
+        migrateAppointments();
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs a one-off migration without continue-on-error, a failing statement stops the startup
+     * before the statements that depend on it.
+     */
+    private void migrate(String script) {
+        new ResourceDatabasePopulator(false, false, "UTF-8", new ClassPathResource(script)).execute(dataSource);
+    }
+
+    /**
+     * Makes a therapist's start times unique. Bookings that would break it are logged before they are removed,
+     * and a failure stops the startup rather than leaving the table without either index.
+     */
+    private void migrateAppointments() {
+        List<Long> duplicates = new JdbcTemplate(dataSource).queryForList("SELECT A.APPOINTMENT_ID FROM APPOINTMENTS A " +
+                "WHERE EXISTS(SELECT 1 FROM APPOINTMENTS B WHERE B.THERAPIST_ID = A.THERAPIST_ID " +
+                "AND B.START_TIME = A.START_TIME AND B.APPOINTMENT_ID < A.APPOINTMENT_ID)", Long.class);
+        if (!duplicates.isEmpty())
+            log.warn("Removing appointments booked twice for the same therapist and time: {}", duplicates);
+        migrate("migrate-appointments.sql");
+    }
+}
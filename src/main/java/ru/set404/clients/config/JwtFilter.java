@@ -1,23 +1,28 @@
 package ru.set404.clients.config;
 
 import io.jsonwebtoken.Claims;
-import jakarta.security.auth.message.AuthException;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
+import ru.set404.clients.models.Therapist;
 import ru.set404.clients.security.JwtProvider;
+import ru.set404.clients.security.TherapistDetails;
+import ru.set404.clients.security.TokenVersions;
 import ru.set404.clients.services.TherapistDetailsService;
 
 import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalInt;
 
 @Slf4j
 @Component
@@ -26,38 +31,66 @@ public class JwtFilter extends OncePerRequestFilter {
     private static final String AUTHORIZATION = "Authorization";
     private final JwtProvider jwtProvider;
     private final TherapistDetailsService service;
+    private final TokenVersions tokenVersions;
+    private final boolean claimsPrincipal;
 
+    /**
+     * @param principal {@code claims} builds the principal from the verified token and checks only its version,
+     *                  {@code database} loads the therapist on every request
+     */
     @Autowired
-    public JwtFilter(JwtProvider jwtProvider, TherapistDetailsService service) {
+    public JwtFilter(JwtProvider jwtProvider, TherapistDetailsService service, TokenVersions tokenVersions,
+                     @Value("${jwt.principal:claims}") String principal) {
         this.jwtProvider = jwtProvider;
         this.service = service;
+        this.tokenVersions = tokenVersions;
+        this.claimsPrincipal = "claims".equals(principal);
     }
 
     @Override
     protected void doFilterInternal(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, FilterChain filterChain) throws ServletException, IOException {
-        try {
-            final String token = getTokenFromRequest(httpServletRequest);
-            if (token != null && jwtProvider.validateAccessToken(token)) {
-                Claims claims = jwtProvider.getAccessClaims(token);
-                UserDetails userDetails = service.loadUserByUsername(claims.getSubject());
+        final String token = getTokenFromRequest(httpServletRequest);
+        Optional<Claims> claims = token == null ? Optional.empty() : jwtProvider.parseAccessToken(token);
+        if (claims.isPresent()) {
+            try {
+                TherapistDetails userDetails = loadPrincipal(claims.get());
+                if (userDetails == null) {
+                    log.debug("Revoked token of therapist {}", claims.get().getSubject());
+                } else {
+                    UsernamePasswordAuthenticationToken authToken =
+                            new UsernamePasswordAuthenticationToken(userDetails,
+                                    userDetails.getPassword(),
+                                    userDetails.getAuthorities());
 
-                UsernamePasswordAuthenticationToken authToken =
-                        new UsernamePasswordAuthenticationToken(userDetails,
-                                userDetails.getPassword(),
-                                userDetails.getAuthorities());
-
-                if (SecurityContextHolder.getContext().getAuthentication() == null) {
-                    SecurityContextHolder.getContext().setAuthentication(authToken);
+                    if (SecurityContextHolder.getContext().getAuthentication() == null) {
+                        SecurityContextHolder.getContext().setAuthentication(authToken);
+                    }
                 }
+            } catch (UsernameNotFoundException ex) {
+                log.debug("Token of a deleted therapist: {}", ex.getMessage());
             }
-        } catch (AuthException ex) {
-            httpServletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
-                    "Invalid JWT Token");
         }
 
         filterChain.doFilter(httpServletRequest, httpServletResponse);
     }
 
+    /**
+     * @return the principal, null when the token was issued before a password, phone or role change
+     * or carries no token version
+     */
+    private TherapistDetails loadPrincipal(Claims claims) {
+        OptionalInt claimedVersion = jwtProvider.getTokenVersion(claims);
+        if (claimedVersion.isEmpty())
+            return null;
+        int tokenVersion = claimedVersion.getAsInt();
+        if (claimsPrincipal) {
+            Therapist therapist = jwtProvider.getTherapist(claims);
+            return tokenVersions.isCurrent(therapist.getId(), tokenVersion) ? new TherapistDetails(therapist) : null;
+        }
+        TherapistDetails userDetails = (TherapistDetails) service.loadUserByUsername(claims.getSubject());
+        return userDetails.getTherapist().getTokenVersion() == tokenVersion ? userDetails : null;
+    }
+
     private String getTokenFromRequest(HttpServletRequest request) {
         final String bearer = request.getHeader(AUTHORIZATION);
         if (StringUtils.hasText(bearer) && bearer.startsWith("Bearer ")) {
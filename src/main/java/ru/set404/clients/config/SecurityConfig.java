@@ -1,6 +1,7 @@
 package ru.set404.clients.config;
 
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -11,8 +12,11 @@ import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
+import ru.set404.clients.security.BoundedPasswordEncoder;
 import ru.set404.clients.services.TherapistDetailsService;
 
+import java.time.Duration;
+
 @Configuration
 @RequiredArgsConstructor
 public class SecurityConfig {
@@ -45,16 +49,21 @@ public class SecurityConfig {
     }
 
     @Bean
-    public AuthenticationManager authenticationManager(HttpSecurity http) throws Exception {
+    public AuthenticationManager authenticationManager(HttpSecurity http, PasswordEncoder passwordEncoder) throws Exception {
         return http.getSharedObject(AuthenticationManagerBuilder.class)
                 .userDetailsService(therapistDetailsService)
-                .passwordEncoder(encoder())
+                .passwordEncoder(passwordEncoder)
                 .and()
                 .build();
     }
 
-    @Bean
-    public PasswordEncoder encoder() {
-        return new BCryptPasswordEncoder();
+    /**
+     * BCrypt on its own bounded pool, so hashing cannot take every request thread and core.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public BoundedPasswordEncoder encoder(@Value("${clients.password-encoder.threads:2}") int threads,
+                                          @Value("${clients.password-encoder.queue:32}") int queueSize,
+                                          @Value("${clients.password-encoder.timeout:2s}") Duration timeout) {
+        return new BoundedPasswordEncoder(new BCryptPasswordEncoder(), threads, queueSize, timeout);
     }
 }
@@ -31,12 +31,19 @@ public class WebConfig implements WebMvcConfigurer {
             return converterName.equals("MappingJackson2HttpMessageConverter");
         });
         MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
+        converter.setObjectMapper(responseObjectMapper());
+        converters.add(converter);
+        WebMvcConfigurer.super.extendMessageConverters(converters);
+    }
+
+    /**
+     * The mapper every JSON response is written with, also used for bodies rendered ahead of time.
+     */
+    public static ObjectMapper responseObjectMapper() {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-        converter.setObjectMapper(objectMapper);
-        converters.add(converter);
-        WebMvcConfigurer.super.extendMessageConverters(converters);
+        return objectMapper;
     }
 
 
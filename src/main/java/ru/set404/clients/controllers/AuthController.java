@@ -1,20 +1,19 @@
 package ru.set404.clients.controllers;
 
 import jakarta.security.auth.message.AuthException;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.modelmapper.ModelMapper;
 import org.springframework.hateoas.EntityModel;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.authentication.AuthenticationManager;
-import org.springframework.security.authentication.BadCredentialsException;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.web.bind.annotation.*;
 import ru.set404.clients.dto.TherapistDTO;
 import ru.set404.clients.dto.securitydto.JwtRequest;
 import ru.set404.clients.dto.securitydto.JwtResponse;
 import ru.set404.clients.dto.securitydto.RefreshJwtRequest;
 import ru.set404.clients.models.Therapist;
+import ru.set404.clients.security.LoginAttemptLimiter;
 import ru.set404.clients.services.AuthService;
 import ru.set404.clients.services.RegistrationService;
 
@@ -28,7 +27,7 @@ public class AuthController {
 
     private final AuthService authService;
     private final RegistrationService registrationService;
-    private final AuthenticationManager authenticationManager;
+    private final LoginAttemptLimiter loginAttemptLimiter;
     private final ModelMapper modelMapper;
 
 
@@ -41,17 +40,11 @@ public class AuthController {
     }
 
     @PostMapping("/login")
-    public ResponseEntity<JwtResponse> performLogin(@Valid @RequestBody JwtRequest authRequest) throws AuthException {
-        UsernamePasswordAuthenticationToken authInputToken =
-                new UsernamePasswordAuthenticationToken(authRequest.getLogin(), authRequest.getPassword());
-
-        try {
-            authenticationManager.authenticate(authInputToken);
-        } catch (BadCredentialsException e) {
-            throw new AuthException("Invalid credentials");
-        }
-
+    public ResponseEntity<JwtResponse> performLogin(@Valid @RequestBody JwtRequest authRequest,
+                                                    HttpServletRequest request) throws AuthException {
+        loginAttemptLimiter.acquire(authRequest.getLogin(), request.getRemoteAddr());
         final JwtResponse token = authService.login(authRequest);
+        loginAttemptLimiter.succeeded(authRequest.getLogin());
         return ResponseEntity.ok(token);
     }
 
@@ -1,5 +1,7 @@
 package ru.set404.clients.controllers;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.springframework.hateoas.EntityModel;
@@ -10,14 +12,23 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import ru.set404.clients.dto.AppointmentDTO;
+import ru.set404.clients.dto.DayAvailabilityDTO;
+import ru.set404.clients.dto.TherapistAvailabilityDTO;
 import ru.set404.clients.models.Appointment;
+import ru.set404.clients.models.FreeSlot;
+import ru.set404.clients.services.AvailabilitySnapshots;
 import ru.set404.clients.services.TherapistService;
+import ru.set404.clients.services.TherapistVersions;
 import ru.set404.clients.util.AppointmentModelAssembler;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.time.YearMonth;
 import java.util.List;
+import java.util.Optional;
 
 @RestController
 @RequiredArgsConstructor
@@ -26,6 +37,8 @@ public class ClientController {
 
     private final AppointmentModelAssembler appointmentModelAssembler;
     private final TherapistService therapistService;
+    private final AvailabilitySnapshots availabilitySnapshots;
+    private final TherapistVersions therapistVersions;
 
     @PostMapping("/appointment")
     public ResponseEntity<?> newAppointment(@Valid @RequestBody AppointmentDTO newAppointment) {
@@ -46,7 +59,10 @@ public class ClientController {
 
     @CrossOrigin
     @GetMapping("/availableTimes")
-    public ResponseEntity<?> availableTimes(@RequestParam Long therapistId, @RequestParam LocalDate date) {
+    public ResponseEntity<?> availableTimes(@RequestParam Long therapistId, @RequestParam LocalDate date,
+                                            WebRequest webRequest) {
+        if (webRequest.checkNotModified(therapistVersions.etag(therapistId, date, date)))
+            return null;
         List<LocalTime> availableTimes = therapistService.findAvailableTimes(therapistId, date);
         if (availableTimes.isEmpty())
             return ResponseEntity
@@ -58,9 +74,40 @@ public class ClientController {
         return new ResponseEntity<>(availableTimes, HttpStatus.OK);
     }
 
+    @CrossOrigin
+    @GetMapping("/availableTimes/batch")
+    public ResponseEntity<?> availableTimesBatch(@RequestParam List<Long> therapistIds,
+                                                 @RequestParam LocalDate from,
+                                                 @RequestParam(required = false) LocalDate to) {
+        LocalDate lastDay = to == null ? from : to;
+        if (therapistIds.isEmpty() || therapistIds.size() > TherapistService.MAX_BATCH_THERAPISTS
+                || lastDay.isBefore(from) || !lastDay.isBefore(from.plusDays(TherapistService.MAX_BATCH_DAYS)))
+            return ResponseEntity
+                    .status(HttpStatus.BAD_REQUEST)
+                    .header(HttpHeaders.CONTENT_TYPE, MediaTypes.HTTP_PROBLEM_DETAILS_JSON_VALUE)
+                    .body(Problem.create()
+                            .withTitle("Bad request")
+                            .withDetail("Up to " + TherapistService.MAX_BATCH_THERAPISTS + " therapists and "
+                                    + TherapistService.MAX_BATCH_DAYS + " days per request"));
+        List<TherapistAvailabilityDTO> availableTimes = therapistService.findAvailableTimes(therapistIds, from, lastDay);
+        return new ResponseEntity<>(availableTimes, HttpStatus.OK);
+    }
+
+    @CrossOrigin
+    @GetMapping("/earliestSlots")
+    public ResponseEntity<?> earliestSlots(@RequestParam(required = false) List<Long> therapistIds,
+                                           @RequestParam(required = false) Integer limit) {
+        List<FreeSlot> slots = therapistService.findEarliestSlots(therapistIds, limit);
+        return new ResponseEntity<>(slots, HttpStatus.OK);
+    }
+
     @CrossOrigin
     @GetMapping("/availableDates")
-    public ResponseEntity<?> availableDates(@RequestParam Long therapistId, @RequestParam LocalDate date) {
+    public ResponseEntity<?> availableDates(@RequestParam Long therapistId, @RequestParam LocalDate date,
+                                            WebRequest webRequest) {
+        YearMonth month = YearMonth.from(date);
+        if (webRequest.checkNotModified(therapistVersions.etag(therapistId, month.atDay(1), month.atEndOfMonth())))
+            return null;
         List<LocalDate> availableDates = therapistService.findAvailableDates(therapistId, date);
         if (availableDates.isEmpty())
             return ResponseEntity
@@ -71,4 +118,28 @@ public class ClientController {
                             .withDetail("There is no available date for appointment to month - " + date.getMonth()));
         return new ResponseEntity<>(availableDates, HttpStatus.OK);
     }
+
+    @CrossOrigin
+    @GetMapping("/availableMonth")
+    public ResponseEntity<?> availableMonth(@RequestParam Long therapistId, @RequestParam LocalDate date,
+                                            @RequestParam(defaultValue = "mask") String encoding,
+                                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!encoding.equals("mask") && !encoding.equals("times"))
+            return ResponseEntity
+                    .status(HttpStatus.BAD_REQUEST)
+                    .header(HttpHeaders.CONTENT_TYPE, MediaTypes.HTTP_PROBLEM_DETAILS_JSON_VALUE)
+                    .body(Problem.create()
+                            .withTitle("Bad request")
+                            .withDetail("Encoding must be mask or times"));
+        if (encoding.equals("mask")) {
+            Optional<AvailabilitySnapshots.Snapshot> snapshot = therapistService.findAvailableMonthSnapshot(therapistId, date);
+            if (snapshot.isPresent()) {
+                availabilitySnapshots.send(snapshot.get(), request, response);
+                return null;
+            }
+        }
+        List<DayAvailabilityDTO> month = therapistService.findAvailableMonth(therapistId, date,
+                encoding.equals("times"));
+        return new ResponseEntity<>(month, HttpStatus.OK);
+    }
 }
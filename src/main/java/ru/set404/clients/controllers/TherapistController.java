@@ -3,6 +3,8 @@ package ru.set404.clients.controllers;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.modelmapper.ModelMapper;
+import org.springframework.data.domain.Slice;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.hateoas.CollectionModel;
 import org.springframework.hateoas.EntityModel;
 import org.springframework.hateoas.IanaLinkRelations;
@@ -15,15 +17,18 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import ru.set404.clients.dto.*;
 import ru.set404.clients.models.*;
 import ru.set404.clients.security.TherapistDetails;
 import ru.set404.clients.services.TherapistService;
+import ru.set404.clients.services.TherapistVersions;
 import ru.set404.clients.util.AppointmentModelAssembler;
 import ru.set404.clients.util.ClientModelAssembler;
 import ru.set404.clients.util.TherapistModelAssembler;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.List;
 
@@ -40,6 +45,7 @@ public class TherapistController {
     private final TherapistModelAssembler therapistModelAssembler;
     private final ClientModelAssembler clientModelAssembler;
     private final TherapistService therapistService;
+    private final TherapistVersions therapistVersions;
     private final PasswordEncoder passwordEncoder;
     private final ModelMapper modelMapper;
 
@@ -55,7 +61,9 @@ public class TherapistController {
         Long therapistId = getAuthUserId();
         Therapist updatedTherapist = therapistService.findTherapistById(therapistId);
         updatedTherapist.setName(newTherapist.getName());
-        updatedTherapist.setPassword(passwordEncoder.encode(newTherapist.getPassword()));
+        // a new hash would differ by its salt alone and revoke every session, so an unchanged password keeps it
+        if (!passwordEncoder.matches(newTherapist.getPassword(), updatedTherapist.getPassword()))
+            updatedTherapist.setPassword(passwordEncoder.encode(newTherapist.getPassword()));
         updatedTherapist.setPhone(newTherapist.getPhone());
         updatedTherapist.setRole(Role.USER);
         therapistService.updateTherapist(updatedTherapist);
@@ -81,10 +89,27 @@ public class TherapistController {
     }
 
     @GetMapping("/appointments")
-    public CollectionModel<EntityModel<Appointment>> allAppointments() {
+    public CollectionModel<EntityModel<Appointment>> allAppointments(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime afterStart,
+            @RequestParam(required = false) Long afterId,
+            @RequestParam(required = false) Integer size,
+            WebRequest webRequest) {
         Long therapistId = getAuthUserId();
-        List<Appointment> appointments = therapistService.findAllAppointments(therapistId);
-        return appointmentModelAssembler.toCollectionModel(appointments);
+        if (webRequest.checkNotModified(therapistVersions.etag(therapistId)))
+            return null;
+        Slice<Appointment> appointments = therapistService.findAppointments(therapistId, from, to, afterStart, afterId, size);
+        CollectionModel<EntityModel<Appointment>> collectionModel = appointmentModelAssembler.toCollectionModel(appointments)
+                .add(linkTo(methodOn(TherapistController.class)
+                        .allAppointments(from, to, afterStart, afterId, size, null)).withSelfRel().expand());
+        if (appointments.hasNext()) {
+            Appointment last = appointments.getContent().get(appointments.getNumberOfElements() - 1);
+            collectionModel.add(linkTo(methodOn(TherapistController.class)
+                    .allAppointments(from, to, last.getStartTime(), last.getAppointmentId(), size, null))
+                    .withRel(IanaLinkRelations.NEXT).expand());
+        }
+        return collectionModel;
     }
 
     @DeleteMapping("/appointments/{appointmentId}")
@@ -95,8 +120,10 @@ public class TherapistController {
     }
 
     @GetMapping("/appointments/byDate")
-    public ResponseEntity<?> availableTime(@RequestParam LocalDate date) {
+    public ResponseEntity<?> availableTime(@RequestParam LocalDate date, WebRequest webRequest) {
         Long therapistId = getAuthUserId();
+        if (webRequest.checkNotModified(therapistVersions.etag(therapistId)))
+            return null;
         List<AppointmentsForSiteDTO> appointmentsForSiteDTOS = therapistService.findAllAppointmentsDTO(therapistId);
         if (appointmentsForSiteDTOS.isEmpty())
             return ResponseEntity
@@ -164,10 +191,23 @@ public class TherapistController {
     }
 
     @GetMapping("/clients")
-    public CollectionModel<EntityModel<Client>> getClients() {
+    public CollectionModel<EntityModel<Client>> getClients(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(required = false) Long afterId,
+            @RequestParam(required = false) Integer size) {
         Long therapistId = getAuthUserId();
-        List<Client> clients = therapistService.findClients(therapistId);
-        return clientModelAssembler.toCollectionModel(clients);
+        Slice<Client> clients = therapistService.findClients(therapistId, from, to, afterId, size);
+        CollectionModel<EntityModel<Client>> collectionModel = clientModelAssembler.toCollectionModel(clients)
+                .add(linkTo(methodOn(TherapistController.class)
+                        .getClients(from, to, afterId, size)).withSelfRel().expand());
+        if (clients.hasNext()) {
+            Client last = clients.getContent().get(clients.getNumberOfElements() - 1);
+            collectionModel.add(linkTo(methodOn(TherapistController.class)
+                    .getClients(from, to, last.getId(), size))
+                    .withRel(IanaLinkRelations.NEXT).expand());
+        }
+        return collectionModel;
     }
 
     private Long getAuthUserId() {
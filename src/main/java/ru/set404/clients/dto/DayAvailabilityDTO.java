@@ -0,0 +1,27 @@
+package ru.set404.clients.dto;
+
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * Free slots of one day, either as the list of times or as a mask over the grid
+ * start, start + step, ... where character i is '1' when that slot is free.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DayAvailabilityDTO {
+    private LocalDate date;
+    private LocalTime start;
+    private Integer step;
+    private String slots;
+    private List<LocalTime> times;
+}
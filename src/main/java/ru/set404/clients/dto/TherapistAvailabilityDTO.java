@@ -0,0 +1,18 @@
+package ru.set404.clients.dto;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class TherapistAvailabilityDTO {
+    private Long therapistId;
+    private List<DayAvailabilityDTO> days;
+}
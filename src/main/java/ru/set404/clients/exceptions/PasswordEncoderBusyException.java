@@ -0,0 +1,8 @@
+package ru.set404.clients.exceptions;
+
+public class PasswordEncoderBusyException extends RuntimeException {
+    public PasswordEncoderBusyException() {
+        super("Too many password checks in progress, try again later");
+    }
+
+}
@@ -0,0 +1,133 @@
+package ru.set404.clients.models;
+
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Slots of one working day: START_TIME, START_TIME + DURATION, ... before END_TIME,
+ * with one bit per slot that is set when the slot is booked.
+ */
+@Getter
+public class SlotGrid {
+    private final LocalDate date;
+    private final LocalTime startTime;
+    private final LocalTime endTime;
+    private final int duration;
+    private final int slotCount;
+    @Getter(AccessLevel.NONE)
+    private final BitSet booked;
+
+    public SlotGrid(LocalDate date, LocalTime startTime, LocalTime endTime, int duration, BitSet booked) {
+        this.date = date;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.duration = duration;
+        int minutes = (endTime.toSecondOfDay() - startTime.toSecondOfDay()) / 60;
+        this.slotCount = duration <= 0 || minutes <= 0 ? 0 : (minutes + duration - 1) / duration;
+        this.booked = booked.get(0, slotCount);
+    }
+
+    public static SlotGrid fromMask(LocalDate date, LocalTime startTime, LocalTime endTime, int duration, byte[] mask) {
+        return new SlotGrid(date, startTime, endTime, duration, BitSet.valueOf(mask));
+    }
+
+    public static SlotGrid fromAppointments(LocalDate date, LocalTime startTime, LocalTime endTime, int duration,
+                                            Collection<LocalTime> appointedTimes) {
+        SlotGrid grid = new SlotGrid(date, startTime, endTime, duration, new BitSet());
+        for (LocalTime appointed : appointedTimes) {
+            int slot = grid.indexOf(appointed);
+            if (slot >= 0)
+                grid.booked.set(slot);
+        }
+        return grid;
+    }
+
+    public LocalTime timeOf(int slot) {
+        return startTime.plusMinutes((long) slot * duration);
+    }
+
+    /**
+     * @return slot starting exactly at the time, or -1 when the time is not on the grid
+     */
+    public int indexOf(LocalTime time) {
+        if (slotCount == 0)
+            return -1;
+        int seconds = time.toSecondOfDay() - startTime.toSecondOfDay();
+        if (seconds < 0 || seconds % (duration * 60) != 0)
+            return -1;
+        int slot = seconds / (duration * 60);
+        return slot < slotCount ? slot : -1;
+    }
+
+    public boolean isBooked(int slot) {
+        return booked.get(slot);
+    }
+
+    public boolean isFull() {
+        return booked.cardinality() == slotCount;
+    }
+
+    public SlotGrid book(int slot) {
+        BitSet changed = (BitSet) booked.clone();
+        changed.set(slot);
+        return new SlotGrid(date, startTime, endTime, duration, changed);
+    }
+
+    public SlotGrid release(int slot) {
+        BitSet changed = (BitSet) booked.clone();
+        changed.clear(slot);
+        return new SlotGrid(date, startTime, endTime, duration, changed);
+    }
+
+    /**
+     * @return free slots, skipping the ones already in the past for today
+     */
+    public List<LocalTime> getAvailableTimes() {
+        List<LocalTime> availableTimes = new ArrayList<>();
+        BitSet available = getAvailableSlots();
+        for (int slot = available.nextSetBit(0); slot >= 0; slot = available.nextSetBit(slot + 1))
+            availableTimes.add(timeOf(slot));
+        return availableTimes;
+    }
+
+    /**
+     * @return one bit per free slot, skipping the ones already in the past for today
+     */
+    public BitSet getAvailableSlots() {
+        BitSet available = new BitSet(slotCount);
+        boolean today = LocalDate.now().isEqual(date);
+        LocalTime now = LocalTime.now();
+        for (int slot = booked.nextClearBit(0); slot < slotCount; slot = booked.nextClearBit(slot + 1)) {
+            if (!today || timeOf(slot).isAfter(now))
+                available.set(slot);
+        }
+        return available;
+    }
+
+    public boolean hasAvailableTime() {
+        if (!LocalDate.now().isEqual(date))
+            return booked.cardinality() < slotCount;
+        LocalTime now = LocalTime.now();
+        for (int slot = booked.nextClearBit(0); slot < slotCount; slot = booked.nextClearBit(slot + 1)) {
+            if (timeOf(slot).isAfter(now))
+                return true;
+        }
+        return false;
+    }
+
+    public BitSet getBooked() {
+        return (BitSet) booked.clone();
+    }
+
+    public byte[] toMask() {
+        return booked.toByteArray();
+    }
+}
@@ -1,5 +1,6 @@
 package ru.set404.clients.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -14,6 +15,11 @@ public class Therapist {
     private String phone;
     private String password;
     private Role role;
+    /**
+     * Raised whenever the password, phone or role changes, access tokens carrying an older value are refused.
+     */
+    @JsonIgnore
+    private int tokenVersion;
     private List<Appointment> appointments;
 
 
@@ -7,8 +7,11 @@ import ru.set404.clients.models.*;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public interface TherapistsRepository {
@@ -16,20 +19,27 @@ public interface TherapistsRepository {
 
     Optional<Client> findClientByPhoneNumber(String phoneNumber);
 
-    Client createClient(Client client);
+    Client addOrUpdateClient(Client client);
 
     boolean isTimeAvailable(Appointment appointment);
 
-    void createAppointment(Appointment appointment);
+    boolean createAppointment(Appointment appointment);
+
+    List<Long> findTherapistIdsByClient(Long clientId);
 
     Optional<List<Appointment>> findAppointmentsForTherapist(Long therapistId);
 
+    List<Appointment> findAppointmentsForTherapist(Long therapistId, LocalDateTime from, LocalDateTime to,
+                                                   LocalDateTime afterStart, Long afterId, int limit);
+
     Optional<List<AppointmentsForSiteDTO>> findAppointmentsForTherapistSite(Long therapistId);
 
     Client makeClientFromResultSet(ResultSet resultSet) throws SQLException;
 
     Optional<List<Client>> findClientsForTherapist(Long therapistId);
 
+    List<Client> findClientsForTherapist(Long therapistId, LocalDateTime from, LocalDateTime to, Long afterId, int limit);
+
     Optional<Appointment> findAppointmentForTherapistById(Long therapistId, Long appointmentId);
 
     List<LocalTime> findAppointmentsByDay(Long therapistId, LocalDate date);
@@ -40,7 +50,17 @@ public interface TherapistsRepository {
 
     List<LocalDate> findAvailableDates(Long therapistId, LocalDate date);
 
-    void deleteAppointment(Long therapistId, Long appointmentId);
+    Optional<SlotGrid> findSlotGrid(Long therapistId, LocalDate date);
+
+    List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from);
+
+    List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from, LocalDate to);
+
+    Map<Long, List<SlotGrid>> findSlotGrids(Collection<Long> therapistIds, LocalDate from);
+
+    List<Long> findTherapistIdsWithAvailability(LocalDate from);
+
+    Optional<LocalDateTime> deleteAppointment(Long therapistId, Long appointmentId);
 
     Therapist makeTherapistFromResultSet(ResultSet resultSet) throws SQLException;
 
@@ -48,8 +68,17 @@ public interface TherapistsRepository {
 
     Optional<Therapist> findTherapistByPhone(String phone);
 
+    /**
+     * Saves the therapist and raises the token version when the password, phone or role changed.
+     */
     void updateTherapist(Therapist therapist);
 
+    Optional<Integer> findTokenVersion(Long therapistId);
+
+    Optional<Long> findCalendarVersion(Long therapistId);
+
+    Optional<Long> bumpCalendarVersion(Long therapistId);
+
     boolean isHaveAvailableTime(Long therapistId, LocalDate date);
 
     void addOrUpdateAvailableTime(Long therapistId, Availability availability);
@@ -1,7 +1,21 @@
 package ru.set404.clients.repositories;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ru.set404.clients.dto.AppointmentsForSiteDTO;
 import ru.set404.clients.dto.AvailabilitiesDTO;
 import ru.set404.clients.models.*;
@@ -11,189 +25,260 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
+/**
+ * All statements go through the {@link JdbcTemplate}, which closes them, applies the query timeout
+ * and fetch size from spring.jdbc.template.* and translates SQLExceptions into DataAccessExceptions.
+ * The SQL texts are constant, so H2 reuses the parsed statements from its per-session query cache.
+ */
 @Repository
 public class TherapistsRepositorySQLImpl implements TherapistsRepository {
 
-    @Value("${db.url}")
-    private String DB_URL;
-    @Value("${db.user}")
-    private String DB_USER;
-    @Value("${db.password}")
-    private String DB_PASSWORD;
+    private static final int SLOT_UPDATE_ATTEMPTS = 3;
+
+    // the hot lookups, whose plans TherapistsRepositoryIndexTest checks
+    static final String CLIENT_BY_PHONE_SQL = "SELECT * FROM clients WHERE phone = ?";
+    static final String THERAPIST_BY_PHONE_SQL = "SELECT * FROM THERAPISTS WHERE PHONE = ?";
+    static final String APPOINTMENTS_BY_DAY_SQL = "SELECT START_TIME FROM appointments " +
+            "WHERE therapist_id = ? AND start_time >= ? AND start_time < ?";
+    static final String AVAILABLE_DATES_SQL = "SELECT AVAILABLE_DATE, AVAILABILITY.START_TIME, END_TIME, DURATION, SLOT_MASK " +
+            "FROM AVAILABILITY " +
+            "JOIN SERVICES ON SERVICES.THERAPIST_ID = AVAILABILITY.THERAPIST_ID " +
+            "WHERE AVAILABILITY.THERAPIST_ID = ? AND AVAILABLE_DATE >= ? AND AVAILABLE_DATE < ? " +
+            "AND ISFULL = false " +
+            "ORDER BY AVAILABLE_DATE";
+    static final String SLOTS_OF_DAY_SQL = "SELECT AVAILABILITY.START_TIME, END_TIME, DURATION, SLOT_MASK FROM AVAILABILITY " +
+            "JOIN SERVICES ON AVAILABILITY.THERAPIST_ID = SERVICES.THERAPIST_ID " +
+            "WHERE AVAILABILITY.THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
+    static final String SLOTS_OF_THERAPISTS_SQL = "SELECT AVAILABILITY.THERAPIST_ID, AVAILABLE_DATE, AVAILABILITY.START_TIME, END_TIME, DURATION, SLOT_MASK " +
+            "FROM AVAILABILITY " +
+            "JOIN SERVICES ON SERVICES.THERAPIST_ID = AVAILABILITY.THERAPIST_ID " +
+            "WHERE AVAILABILITY.THERAPIST_ID = ANY(?) AND AVAILABLE_DATE >= ? " +
+            "ORDER BY AVAILABILITY.THERAPIST_ID, AVAILABLE_DATE";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Cache<String, CachedClient> clientsByPhone;
+    private final RowMapper<Client> clientMapper = (resultSet, rowNum) -> makeClientFromResultSet(resultSet);
+    private final RowMapper<Therapist> therapistMapper = (resultSet, rowNum) -> makeTherapistFromResultSet(resultSet);
+
+    @Autowired
+    public TherapistsRepositorySQLImpl(JdbcTemplate jdbcTemplate,
+                                       @Value("${clients.id-cache-size:10000}") long clientIdCacheSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.clientsByPhone = Caffeine.newBuilder().maximumSize(clientIdCacheSize).build();
+    }
 
     @Override
     public Long createTherapist(Therapist therapist) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-
-            String sql = "INSERT INTO therapists (name, phone, password, role) " +
-                    "VALUES (?, ?, ?, ?)";
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-
-            statement.setString(1, therapist.getName());
-            statement.setString(2, therapist.getPhone());
-            statement.setString(3, therapist.getPassword());
-            statement.setString(4, therapist.getRole().getValue());
-            statement.executeUpdate();
-            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    return generatedKeys.getLong(1);
-                } else {
-                    throw new SQLException("Creating client failed, no ID obtained.");
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return null;
+        String sql = "INSERT INTO therapists (name, phone, password, role) " +
+                "VALUES (?, ?, ?, ?)";
+        return insertReturningId(sql, "therapist_id", therapist.getName(), therapist.getPhone(),
+                therapist.getPassword(), therapist.getRole().getValue());
+    }
+
+    private Long insertReturningId(String sql, String idColumn, Object... args) {
+        return insertIfSelected(sql, idColumn, args)
+                .orElseThrow(() -> new IncorrectResultSizeDataAccessException("No id obtained for " + sql, 1, 0));
+    }
+
+    /**
+     * Runs an insert that may add no row at all, e.g. an INSERT ... SELECT whose source is empty.
+     */
+    private Optional<Long> insertIfSelected(String sql, String idColumn, Object... args) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        int inserted = jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql, new String[]{idColumn});
+            new ArgumentPreparedStatementSetter(args).setValues(statement);
+            return statement;
+        }, keyHolder);
+        Number id = inserted == 0 ? null : keyHolder.getKey();
+        return Optional.ofNullable(id).map(Number::longValue);
     }
 
     @Override
     public Optional<Client> findClientByPhoneNumber(String phoneNumber) {
-        Optional<Client> client = Optional.empty();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM clients WHERE phone = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, phoneNumber);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                client = Optional.of(makeClientFromResultSet(resultSet));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        return jdbcTemplate.query(CLIENT_BY_PHONE_SQL, clientMapper, phoneNumber).stream().findFirst();
+    }
+
+    @Override
+    public Client addOrUpdateClient(Client client) {
+        // the cache only saves the statement when the row already holds this name, a new name is always merged
+        CachedClient cached = clientsByPhone.getIfPresent(client.getPhone());
+        if (cached != null && cached.name().equals(client.getName())) {
+            client.setId(cached.id());
+            return client;
         }
+        try {
+            client.setId(mergeClient(client));
+        } catch (DuplicateKeyException e) {
+            // a concurrent insert of the same phone won the race, the retry updates that row
+            client.setId(mergeClient(client));
+        }
+        cacheClient(client.getPhone(), new CachedClient(client.getId(), client.getName()));
         return client;
     }
 
-    @Override
-    public Client createClient(Client client) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "INSERT INTO clients (name, phone) VALUES (?, ?)";
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            statement.setString(1, client.getName());
-            statement.setString(2, client.getPhone());
-            statement.executeUpdate();
+    private Long mergeClient(Client client) {
+        String sql = "SELECT CLIENT_ID FROM FINAL TABLE (MERGE INTO CLIENTS (NAME, PHONE) KEY (PHONE) VALUES (?, ?))";
+        return jdbcTemplate.queryForObject(sql, Long.class, client.getName(), client.getPhone());
+    }
 
-            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    client.setId(generatedKeys.getLong(1));
-                } else {
-                    throw new SQLException("Creating client failed, no ID obtained.");
+    private void cacheClient(String phone, CachedClient cached) {
+        // an id from a transaction that is rolled back afterwards must never reach the cache
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    clientsByPhone.put(phone, cached);
                 }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            });
+        } else {
+            clientsByPhone.put(phone, cached);
         }
-        return client;
+    }
+
+    private record CachedClient(Long id, String name) {
     }
 
     @Override
     public boolean isTimeAvailable(Appointment appointment) {
-        boolean isAvailable = true;
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM appointments WHERE therapist_id = ? AND start_time = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, appointment.getTherapistId());
-            statement.setTimestamp(2, Timestamp.valueOf(appointment.getStartTime()));
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                isAvailable = false;
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return isAvailable;
+        String sql = "SELECT APPOINTMENT_ID FROM appointments WHERE therapist_id = ? AND start_time = ?";
+        return jdbcTemplate.queryForList(sql, Long.class, appointment.getTherapistId(),
+                Timestamp.valueOf(appointment.getStartTime())).isEmpty();
     }
 
     @Override
-    public void createAppointment(Appointment appointment) {
-
-        Optional<Client> client = findClientByPhoneNumber(appointment.getClient().getPhone());
-        appointment.setClient(client.orElse(createClient(appointment.getClient())));
-
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "INSERT INTO appointments (client_id, therapist_id, service_id, start_time) " +
-                    "VALUES (?, ?, ?, ?)";
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            statement.setLong(1, appointment.getClient().getId());
-            statement.setLong(2, appointment.getTherapistId());
-            statement.setLong(3, appointment.getServiceId());
-            statement.setTimestamp(4, Timestamp.valueOf(appointment.getStartTime()));
-            statement.executeUpdate();
-
-            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    appointment.setAppointmentId(generatedKeys.getLong(1));
-                } else {
-                    throw new SQLException("Creating client failed, no ID obtained.");
-                }
-            }
+    @Transactional
+    public boolean createAppointment(Appointment appointment) {
+        LocalDate date = appointment.getStartTime().toLocalDate();
+        LocalTime time = appointment.getStartTime().toLocalTime();
+        boolean booked = false;
+        for (int attempt = 0; attempt < SLOT_UPDATE_ATTEMPTS && !booked; attempt++) {
+            Optional<StoredSlots> slots = findSlots(appointment.getTherapistId(), date);
+            if (slots.isEmpty() || !slots.get().grid().getAvailableTimes().contains(time))
+                return false;
+            SlotGrid grid = slots.get().grid();
+            booked = compareAndSetSlots(appointment.getTherapistId(), slots.get(), grid.book(grid.indexOf(time)));
+        }
+        if (!booked)
+            return false;
+
+        appointment.setClient(addOrUpdateClient(appointment.getClient()));
+        if (!insertAppointment(appointment)) {
+            // the cached client id points to a row that no longer exists
+            clientsByPhone.invalidate(appointment.getClient().getPhone());
+            appointment.getClient().setId(null);
+            appointment.setClient(addOrUpdateClient(appointment.getClient()));
+            if (!insertAppointment(appointment))
+                throw new IncorrectResultSizeDataAccessException("Client " + appointment.getClient().getId()
+                        + " vanished while booking", 1, 0);
+        }
+        return true;
+    }
 
-            if (findAvailableTimes(appointment.getTherapistId(), appointment.getStartTime().toLocalDate()).size() < 1)
-                markAvailabilityAs(appointment.getTherapistId(), appointment.getStartTime().toLocalDate(), true);
+    @Override
+    public List<Long> findTherapistIdsByClient(Long clientId) {
+        String sql = "SELECT DISTINCT THERAPIST_ID FROM APPOINTMENTS WHERE CLIENT_ID = ?";
+        return jdbcTemplate.queryForList(sql, Long.class, clientId);
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Inserts only when the client row exists, so a stale cached id neither fails the statement
+     * nor burns an appointment id.
+     */
+    private boolean insertAppointment(Appointment appointment) {
+        String sql = "INSERT INTO appointments (client_id, therapist_id, service_id, start_time) " +
+                "SELECT CLIENT_ID, ?, ?, ? FROM CLIENTS WHERE CLIENT_ID = ?";
+        Optional<Long> id = insertIfSelected(sql, "appointment_id",
+                appointment.getTherapistId(),
+                appointment.getServiceId(),
+                Timestamp.valueOf(appointment.getStartTime()),
+                appointment.getClient().getId());
+        id.ifPresent(appointment::setAppointmentId);
+        return id.isPresent();
     }
 
     @Override
     public Optional<List<Appointment>> findAppointmentsForTherapist(Long therapistId) {
-        List<Appointment> appointments = new ArrayList<>();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM appointments " +
-                    "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
-                    "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
-                    "WHERE APPOINTMENTS.therapist_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                Long appointmentId = resultSet.getLong("appointment_id");
-                Long serviceId = resultSet.getLong("service_id");
-                Timestamp startTime = resultSet.getTimestamp("start_time");
-                Client client = makeClientFromResultSet(resultSet);
-                Appointment appointment = new Appointment(appointmentId, startTime.toLocalDateTime(), serviceId, therapistId, client);
-                appointments.add(appointment);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String sql = "SELECT * FROM appointments " +
+                "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
+                "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
+                "WHERE APPOINTMENTS.therapist_id = ?";
+        List<Appointment> appointments = jdbcTemplate.query(sql,
+                (resultSet, rowNum) -> makeAppointmentFromResultSet(resultSet, therapistId), therapistId);
         if (appointments.size() > 0)
             return Optional.of(appointments);
         else return Optional.empty();
     }
 
+    /**
+     * One page of appointments ordered by (START_TIME, APPOINTMENT_ID), starting right after the given
+     * cursor, so the cost is bounded by the page size and not by how far the client has paged.
+     */
     @Override
-    public Optional<List<AppointmentsForSiteDTO>> findAppointmentsForTherapistSite(Long therapistId) {
-        List<AppointmentsForSiteDTO> appointments = new ArrayList<>();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM appointments " +
-                    "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
-                    "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
-                    "WHERE APPOINTMENTS.therapist_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                Long appointmentId = resultSet.getLong("appointment_id");
-                Timestamp startTime = resultSet.getTimestamp("start_time");
-                int duration = resultSet.getInt("duration");
-                String clientName = resultSet.getString("name");
-                String clientPhone = resultSet.getString("phone");
-                AppointmentsForSiteDTO appointment = new AppointmentsForSiteDTO();
-                appointment.setId(appointmentId);
-                appointment.setTitle(clientName);
-                appointment.setStart(startTime.toLocalDateTime());
-                appointment.setEnd(startTime.toLocalDateTime().plusMinutes(duration));
-                appointment.setCategory(clientPhone);
-                appointments.add(appointment);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    public List<Appointment> findAppointmentsForTherapist(Long therapistId, LocalDateTime from, LocalDateTime to,
+                                                          LocalDateTime afterStart, Long afterId, int limit) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM appointments " +
+                "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
+                "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
+                "WHERE APPOINTMENTS.therapist_id = ?");
+        List<Object> args = new ArrayList<>();
+        args.add(therapistId);
+        appendStartTimeRange(sql, args, from, to);
+        if (afterStart != null) {
+            sql.append(" AND APPOINTMENTS.START_TIME >= ? " +
+                    "AND (APPOINTMENTS.START_TIME > ? OR APPOINTMENTS.APPOINTMENT_ID > ?)");
+            args.add(Timestamp.valueOf(afterStart));
+            args.add(Timestamp.valueOf(afterStart));
+            args.add(afterId == null ? Long.MAX_VALUE : afterId);
+        }
+        sql.append(" ORDER BY APPOINTMENTS.START_TIME, APPOINTMENTS.APPOINTMENT_ID LIMIT ?");
+        args.add(limit);
+        return jdbcTemplate.query(sql.toString(),
+                (resultSet, rowNum) -> makeAppointmentFromResultSet(resultSet, therapistId), args.toArray());
+    }
+
+    private static void appendStartTimeRange(StringBuilder sql, List<Object> args, LocalDateTime from, LocalDateTime to) {
+        if (from != null) {
+            sql.append(" AND APPOINTMENTS.START_TIME >= ?");
+            args.add(Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            sql.append(" AND APPOINTMENTS.START_TIME < ?");
+            args.add(Timestamp.valueOf(to));
         }
+    }
+
+    private Appointment makeAppointmentFromResultSet(ResultSet resultSet, Long therapistId) throws SQLException {
+        Long appointmentId = resultSet.getLong("appointment_id");
+        Long serviceId = resultSet.getLong("service_id");
+        Timestamp startTime = resultSet.getTimestamp("start_time");
+        Client client = makeClientFromResultSet(resultSet);
+        return new Appointment(appointmentId, startTime.toLocalDateTime(), serviceId, therapistId, client);
+    }
+
+    @Override
+    public Optional<List<AppointmentsForSiteDTO>> findAppointmentsForTherapistSite(Long therapistId) {
+        String sql = "SELECT * FROM appointments " +
+                "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
+                "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
+                "WHERE APPOINTMENTS.therapist_id = ?";
+        List<AppointmentsForSiteDTO> appointments = jdbcTemplate.query(sql, (resultSet, rowNum) -> {
+            Timestamp startTime = resultSet.getTimestamp("start_time");
+            AppointmentsForSiteDTO appointment = new AppointmentsForSiteDTO();
+            appointment.setId(resultSet.getLong("appointment_id"));
+            appointment.setTitle(resultSet.getString("name"));
+            appointment.setStart(startTime.toLocalDateTime());
+            appointment.setEnd(startTime.toLocalDateTime().plusMinutes(resultSet.getInt("duration")));
+            appointment.setCategory(resultSet.getString("phone"));
+            return appointment;
+        }, therapistId);
         if (appointments.size() > 0)
             return Optional.of(appointments);
         else return Optional.empty();
@@ -210,164 +295,196 @@ public class TherapistsRepositorySQLImpl implements TherapistsRepository {
 
     @Override
     public Optional<List<Client>> findClientsForTherapist(Long therapistId) {
-        List<Client> clients = new ArrayList<>();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT C.CLIENT_ID, C.NAME, C.PHONE FROM appointments " +
-                    "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
-                    "WHERE APPOINTMENTS.therapist_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                clients.add(makeClientFromResultSet(resultSet));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String sql = "SELECT C.CLIENT_ID, C.NAME, C.PHONE FROM appointments " +
+                "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
+                "WHERE APPOINTMENTS.therapist_id = ?";
+        List<Client> clients = jdbcTemplate.query(sql, clientMapper, therapistId);
         if (clients.size() > 0)
             return Optional.of(clients);
         else return Optional.empty();
     }
 
+    /**
+     * One page of distinct clients that have appointments with the therapist, ordered by CLIENT_ID.
+     */
     @Override
-    public Optional<Appointment> findAppointmentForTherapistById(Long therapistId, Long appointmentId) {
-        Appointment appointment = null;
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM appointments " +
-                    "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
-                    "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
-                    "WHERE APPOINTMENTS.therapist_id = ? AND APPOINTMENT_ID = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.setLong(2, appointmentId);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                Long serviceId = resultSet.getLong("service_id");
-                Timestamp startTime = resultSet.getTimestamp("start_time");
-                Client client = makeClientFromResultSet(resultSet);
-                appointment = new Appointment(appointmentId, startTime.toLocalDateTime(), serviceId, therapistId, client);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        if (appointment != null)
-            return Optional.of(appointment);
-        else return Optional.empty();
+    public List<Client> findClientsForTherapist(Long therapistId, LocalDateTime from, LocalDateTime to,
+                                                Long afterId, int limit) {
+        StringBuilder sql = new StringBuilder("SELECT C.CLIENT_ID, C.NAME, C.PHONE FROM CLIENTS C " +
+                "WHERE C.CLIENT_ID > ? AND EXISTS (SELECT 1 FROM APPOINTMENTS " +
+                "WHERE APPOINTMENTS.CLIENT_ID = C.CLIENT_ID AND APPOINTMENTS.THERAPIST_ID = ?");
+        List<Object> args = new ArrayList<>();
+        args.add(afterId == null ? 0L : afterId);
+        args.add(therapistId);
+        appendStartTimeRange(sql, args, from, to);
+        sql.append(") ORDER BY C.CLIENT_ID LIMIT ?");
+        args.add(limit);
+        return jdbcTemplate.query(sql.toString(), clientMapper, args.toArray());
     }
 
+    @Override
+    public Optional<Appointment> findAppointmentForTherapistById(Long therapistId, Long appointmentId) {
+        String sql = "SELECT * FROM appointments " +
+                "JOIN CLIENTS C on C.CLIENT_ID = APPOINTMENTS.CLIENT_ID " +
+                "JOIN SERVICES S on S.SERVICE_ID = APPOINTMENTS.SERVICE_ID " +
+                "WHERE APPOINTMENTS.therapist_id = ? AND APPOINTMENT_ID = ?";
+        return jdbcTemplate.query(sql, (resultSet, rowNum) -> makeAppointmentFromResultSet(resultSet, therapistId),
+                therapistId, appointmentId).stream().findFirst();
+    }
 
     @Override
     public List<LocalTime> findAppointmentsByDay(Long therapistId, LocalDate date) {
-        List<LocalTime> appointments = new ArrayList<>();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT START_TIME FROM appointments " +
-                    "WHERE therapist_id = ? AND FORMATDATETIME(start_time, 'yyyy-MM-dd', 'de') = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.setDate(2, Date.valueOf(date));
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                LocalDateTime startTime = resultSet.getTimestamp("start_time").toLocalDateTime();
-                appointments.add(startTime.toLocalTime());
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return appointments;
+        return jdbcTemplate.query(APPOINTMENTS_BY_DAY_SQL,
+                (resultSet, rowNum) -> resultSet.getTimestamp("start_time").toLocalDateTime().toLocalTime(),
+                therapistId, Timestamp.valueOf(date.atStartOfDay()), Timestamp.valueOf(date.plusDays(1).atStartOfDay()));
     }
 
     @Override
     public void markAvailabilityAs(Long therapistId, LocalDate date, boolean markAs) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "UPDATE AVAILABILITY SET ISFULL = ? WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setBoolean(1, markAs);
-            statement.setLong(2, therapistId);
-            statement.setDate(3, Date.valueOf(date));
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String sql = "UPDATE AVAILABILITY SET ISFULL = ? WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
+        jdbcTemplate.update(sql, markAs, therapistId, Date.valueOf(date));
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<LocalTime> findAvailableTimes(Long therapistId, LocalDate date) {
-        List<LocalTime> availableTimes = new ArrayList<>();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT START_TIME, END_TIME, DURATION FROM AVAILABILITY " +
-                    "JOIN SERVICES ON AVAILABILITY.THERAPIST_ID = SERVICES.THERAPIST_ID " +
-                    "WHERE AVAILABILITY.therapist_id = ? AND AVAILABLE_DATE = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.setDate(2, Date.valueOf(date));
-            ResultSet resultSet = statement.executeQuery();
-
-            List<LocalTime> appointedTime = findAppointmentsByDay(therapistId, date);
-
-            if (resultSet.next()) {
-                LocalTime startTime = resultSet.getTime("start_time").toLocalTime();
-
-                LocalTime endTime = resultSet.getTime("end_time").toLocalTime();
-                int duration = resultSet.getInt("duration");
-                for (LocalTime time = startTime; time.isBefore(endTime); time = time.plusMinutes(duration)) {
-                    if (!appointedTime.contains(time) && (!LocalDate.now().isEqual(date) || time.isAfter(LocalTime.now()))) {
-                        availableTimes.add(time);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return availableTimes;
+        return findSlots(therapistId, date)
+                .map(slots -> slots.grid().getAvailableTimes())
+                .orElseGet(ArrayList::new);
     }
 
     @Override
     public List<LocalDate> findAvailableDates(Long therapistId, LocalDate date) {
+        LocalDate monthStart = date.withDayOfMonth(1);
+        LocalDate from = monthStart.isBefore(LocalDate.now()) ? LocalDate.now() : monthStart;
+        List<StoredSlots> days = jdbcTemplate.query(AVAILABLE_DATES_SQL,
+                (resultSet, rowNum) -> makeSlots(therapistId, resultSet.getDate("available_date").toLocalDate(), resultSet),
+                therapistId, Date.valueOf(from), Date.valueOf(monthStart.plusMonths(1)));
         List<LocalDate> availableDates = new ArrayList<>();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT AVAILABLE_DATE FROM AVAILABILITY " +
-                    "WHERE therapist_id = ? AND AVAILABLE_DATE >= CURRENT_DATE() AND MONTH(AVAILABLE_DATE) = ? " +
-                    "AND ISFULL = false";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.setInt(2, Date.valueOf(date).toLocalDate().getMonth().getValue());
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                LocalDate availableDate = resultSet.getDate("available_date").toLocalDate();
-                if (availableDate.isEqual(LocalDate.now()) && findAvailableTimes(therapistId, availableDate).size() < 1)
-                    markAvailabilityAs(therapistId, availableDate, true);
-                else
-                    availableDates.add(availableDate);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        for (StoredSlots day : days) {
+            // today may still have free slots that are already in the past
+            if (!day.grid().getAvailableTimes().isEmpty())
+                availableDates.add(day.grid().getDate());
         }
         return availableDates;
     }
 
     @Override
-    public void deleteAppointment(Long therapistId, Long appointmentId) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM appointments WHERE appointment_id = ? AND THERAPIST_ID = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, appointmentId);
-            statement.setLong(2, therapistId);
-            ResultSet resultSet = statement.executeQuery();
+    public Optional<SlotGrid> findSlotGrid(Long therapistId, LocalDate date) {
+        return findSlots(therapistId, date).map(StoredSlots::grid);
+    }
+
+    @Override
+    public List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from) {
+        String sql = "SELECT AVAILABLE_DATE, AVAILABILITY.START_TIME, END_TIME, DURATION, SLOT_MASK " +
+                "FROM AVAILABILITY " +
+                "JOIN SERVICES ON SERVICES.THERAPIST_ID = AVAILABILITY.THERAPIST_ID " +
+                "WHERE AVAILABILITY.THERAPIST_ID = ? AND AVAILABLE_DATE >= ? " +
+                "ORDER BY AVAILABLE_DATE";
+        return jdbcTemplate.query(sql,
+                (resultSet, rowNum) -> makeSlots(therapistId, resultSet.getDate("available_date").toLocalDate(), resultSet).grid(),
+                therapistId, Date.valueOf(from));
+    }
 
-            if (resultSet.next()) {
-                LocalDate date = resultSet.getTimestamp("start_time").toLocalDateTime().toLocalDate();
-                sql = "DELETE FROM appointments WHERE appointment_id = ? AND THERAPIST_ID = ?";
-                statement = connection.prepareStatement(sql);
-                statement.setLong(1, appointmentId);
-                statement.setLong(2, therapistId);
-                statement.executeUpdate();
+    @Override
+    public List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from, LocalDate to) {
+        String sql = "SELECT AVAILABLE_DATE, AVAILABILITY.START_TIME, END_TIME, DURATION, SLOT_MASK " +
+                "FROM AVAILABILITY " +
+                "JOIN SERVICES ON SERVICES.THERAPIST_ID = AVAILABILITY.THERAPIST_ID " +
+                "WHERE AVAILABILITY.THERAPIST_ID = ? AND AVAILABLE_DATE >= ? AND AVAILABLE_DATE < ? " +
+                "ORDER BY AVAILABLE_DATE";
+        return jdbcTemplate.query(sql,
+                (resultSet, rowNum) -> makeSlots(therapistId, resultSet.getDate("available_date").toLocalDate(), resultSet).grid(),
+                therapistId, Date.valueOf(from), Date.valueOf(to));
+    }
 
-                if (findAvailableTimes(therapistId, date).size() > 0)
-                    markAvailabilityAs(therapistId, date, false);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * One statement for any number of therapists: the ids are bound as a single array parameter,
+     * so the text stays the same for H2's query cache and the lookup still uses the (therapist, date) index.
+     */
+    @Override
+    public Map<Long, List<SlotGrid>> findSlotGrids(Collection<Long> therapistIds, LocalDate from) {
+        Map<Long, List<SlotGrid>> grids = new HashMap<>();
+        jdbcTemplate.query(SLOTS_OF_THERAPISTS_SQL, resultSet -> {
+            Long therapistId = resultSet.getLong("therapist_id");
+            LocalDate date = resultSet.getDate("available_date").toLocalDate();
+            grids.computeIfAbsent(therapistId, id -> new ArrayList<>())
+                    .add(makeSlots(therapistId, date, resultSet).grid());
+        }, therapistIds.toArray(Long[]::new), Date.valueOf(from));
+        return grids;
+    }
+
+    @Override
+    public List<Long> findTherapistIdsWithAvailability(LocalDate from) {
+        String sql = "SELECT DISTINCT THERAPIST_ID FROM AVAILABILITY " +
+                "WHERE AVAILABLE_DATE >= ? AND ISFULL = false ORDER BY THERAPIST_ID";
+        return jdbcTemplate.queryForList(sql, Long.class, Date.valueOf(from));
+    }
+
+    @Override
+    @Transactional
+    public Optional<LocalDateTime> deleteAppointment(Long therapistId, Long appointmentId) {
+        String sql = "SELECT START_TIME FROM OLD TABLE " +
+                "(DELETE FROM APPOINTMENTS WHERE APPOINTMENT_ID = ? AND THERAPIST_ID = ?)";
+        List<LocalDateTime> deleted = jdbcTemplate.query(sql,
+                (resultSet, rowNum) -> resultSet.getTimestamp("start_time").toLocalDateTime(),
+                appointmentId, therapistId);
+        if (deleted.isEmpty())
+            return Optional.empty();
+
+        LocalDateTime startTime = deleted.get(0);
+        for (int attempt = 0; attempt < SLOT_UPDATE_ATTEMPTS; attempt++) {
+            Optional<StoredSlots> slots = findSlots(therapistId, startTime.toLocalDate());
+            if (slots.isEmpty())
+                return Optional.of(startTime);
+            SlotGrid grid = slots.get().grid();
+            int slot = grid.indexOf(startTime.toLocalTime());
+            if (slot < 0 || !grid.isBooked(slot))
+                return Optional.of(startTime);
+            if (compareAndSetSlots(therapistId, slots.get(), grid.release(slot)))
+                return Optional.of(startTime);
         }
+        throw new IllegalStateException("Slot of appointment " + appointmentId + " is updated concurrently");
+    }
+
+    /**
+     * Working day as stored in AVAILABILITY. The mask is NULL until it has been computed for the row
+     * (rows saved before SLOT_MASK existed, or days older than the last service change), and the grid
+     * is then rebuilt from the appointments of the day.
+     */
+    private record StoredSlots(SlotGrid grid, byte[] mask) {
+    }
+
+    private Optional<StoredSlots> findSlots(Long therapistId, LocalDate date) {
+        return jdbcTemplate.query(SLOTS_OF_DAY_SQL, (resultSet, rowNum) -> makeSlots(therapistId, date, resultSet),
+                therapistId, Date.valueOf(date)).stream().findFirst();
+    }
+
+    private StoredSlots makeSlots(Long therapistId, LocalDate date, ResultSet resultSet) throws SQLException {
+        LocalTime startTime = resultSet.getTime("start_time").toLocalTime();
+        LocalTime endTime = resultSet.getTime("end_time").toLocalTime();
+        int duration = resultSet.getInt("duration");
+        byte[] mask = resultSet.getBytes("slot_mask");
+        SlotGrid grid = mask != null
+                ? SlotGrid.fromMask(date, startTime, endTime, duration, mask)
+                : SlotGrid.fromAppointments(date, startTime, endTime, duration, findAppointmentsByDay(therapistId, date));
+        return new StoredSlots(grid, mask);
+    }
+
+    /**
+     * Stores the updated slots only if the mask is still the one the update was computed from.
+     *
+     * @return false when another booking or cancellation has changed the day in the meantime
+     */
+    private boolean compareAndSetSlots(Long therapistId, StoredSlots expected, SlotGrid updated) {
+        String sql = "UPDATE AVAILABILITY SET SLOT_MASK = ?, ISFULL = ? " +
+                "WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ? AND ";
+        Date date = Date.valueOf(updated.getDate());
+        if (expected.mask() == null)
+            return jdbcTemplate.update(sql + "SLOT_MASK IS NULL",
+                    updated.toMask(), updated.isFull(), therapistId, date) == 1;
+        return jdbcTemplate.update(sql + "SLOT_MASK = ?",
+                updated.toMask(), updated.isFull(), therapistId, date, expected.mask()) == 1;
     }
 
     @Override
@@ -378,198 +495,190 @@ public class TherapistsRepositorySQLImpl implements TherapistsRepository {
         therapist.setPassword(resultSet.getString("password"));
         therapist.setPhone(resultSet.getString("phone"));
         therapist.setRole(Role.valueOf(resultSet.getString("role")));
+        therapist.setTokenVersion(resultSet.getInt("token_version"));
         return therapist;
     }
 
     @Override
     public Optional<Therapist> findTherapistById(Long therapistId) {
-        Optional<Therapist> therapist = Optional.empty();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM THERAPISTS WHERE THERAPIST_ID = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                therapist = Optional.of(makeTherapistFromResultSet(resultSet));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return therapist;
+        String sql = "SELECT * FROM THERAPISTS WHERE THERAPIST_ID = ?";
+        return jdbcTemplate.query(sql, therapistMapper, therapistId).stream().findFirst();
     }
 
     @Override
     public Optional<Therapist> findTherapistByPhone(String phone) {
-        Optional<Therapist> therapist = Optional.empty();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM THERAPISTS WHERE PHONE = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, phone);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                therapist = Optional.of(makeTherapistFromResultSet(resultSet));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return therapist;
+        return jdbcTemplate.query(THERAPIST_BY_PHONE_SQL, therapistMapper, phone).stream().findFirst();
     }
 
     @Override
     public void updateTherapist(Therapist therapist) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "UPDATE THERAPISTS SET NAME = ?, PASSWORD = ?, PHONE = ?, ROLE = ? WHERE THERAPIST_ID = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, therapist.getName());
-            statement.setString(2, therapist.getPassword());
-            statement.setString(3, therapist.getPhone());
-            statement.setString(4, therapist.getRole().getValue());
-            statement.setLong(5, therapist.getId());
-            statement.executeUpdate();
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String sql = "UPDATE THERAPISTS SET TOKEN_VERSION = CASE WHEN PASSWORD <> ? OR PHONE <> ? OR ROLE <> ? " +
+                "THEN TOKEN_VERSION + 1 ELSE TOKEN_VERSION END, NAME = ?, PASSWORD = ?, PHONE = ?, ROLE = ? " +
+                "WHERE THERAPIST_ID = ?";
+        jdbcTemplate.update(sql, therapist.getPassword(), therapist.getPhone(), therapist.getRole().getValue(),
+                therapist.getName(), therapist.getPassword(), therapist.getPhone(), therapist.getRole().getValue(),
+                therapist.getId());
     }
 
     @Override
-    public boolean isHaveAvailableTime(Long therapistId, LocalDate date) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM AVAILABILITY WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.setDate(2, Date.valueOf(date));
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) return false;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return true;
+    public Optional<Integer> findTokenVersion(Long therapistId) {
+        String sql = "SELECT TOKEN_VERSION FROM THERAPISTS WHERE THERAPIST_ID = ?";
+        return jdbcTemplate.queryForList(sql, Integer.class, therapistId).stream().findFirst();
     }
 
     @Override
-    public void addOrUpdateAvailableTime(Long therapistId, Availability availability) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql;
-            if (isHaveAvailableTime(therapistId, availability.getDate())) {
-                sql = "INSERT INTO AVAILABILITY (START_TIME, END_TIME, THERAPIST_ID, AVAILABLE_DATE) " +
-                        "VALUES (?, ?, ?, ?)";
-            } else {
-                sql = "UPDATE AVAILABILITY SET START_TIME = ?, END_TIME = ? WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
+    public Optional<Long> findCalendarVersion(Long therapistId) {
+        String sql = "SELECT CALENDAR_VERSION FROM THERAPISTS WHERE THERAPIST_ID = ?";
+        return jdbcTemplate.queryForList(sql, Long.class, therapistId).stream().findFirst();
+    }
 
-            }
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setTime(1, Time.valueOf(availability.getStartTime()));
-            statement.setTime(2, Time.valueOf(availability.getEndTime()));
-            statement.setLong(3, therapistId);
-            statement.setDate(4, Date.valueOf(availability.getDate()));
-            statement.executeUpdate();
-
-            markAvailabilityAs(therapistId, availability.getDate(), findAvailableTimes(therapistId, availability.getDate()).size() < 1);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    @Override
+    public Optional<Long> bumpCalendarVersion(Long therapistId) {
+        String sql = "SELECT CALENDAR_VERSION FROM FINAL TABLE " +
+                "(UPDATE THERAPISTS SET CALENDAR_VERSION = CALENDAR_VERSION + 1 WHERE THERAPIST_ID = ?)";
+        return jdbcTemplate.queryForList(sql, Long.class, therapistId).stream().findFirst();
     }
 
     @Override
-    public void addOrUpdateAvailableTime(Long therapistId, AvailabilitiesDTO availabilitiesDTO) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            for (LocalDate date = availabilitiesDTO.getStartTime().toLocalDate();
-                 date.isBefore(availabilitiesDTO.getEndTime().toLocalDate());
-                 date = date.plusDays(1)) {
-                String sql;
-                if (isHaveAvailableTime(therapistId, date)) {
-                    sql = "INSERT INTO AVAILABILITY (START_TIME, END_TIME, THERAPIST_ID, AVAILABLE_DATE) " +
-                            "VALUES (?, ?, ?, ?)";
-                } else {
-                    sql = "UPDATE AVAILABILITY SET START_TIME = ?, END_TIME = ? WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
+    public boolean isHaveAvailableTime(Long therapistId, LocalDate date) {
+        String sql = "SELECT AVAILABILITY_ID FROM AVAILABILITY WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?";
+        return jdbcTemplate.queryForList(sql, Long.class, therapistId, Date.valueOf(date)).isEmpty();
+    }
 
-                }
+    @Override
+    @Transactional
+    public void addOrUpdateAvailableTime(Long therapistId, Availability availability) {
+        saveAvailabilities(therapistId, availability.getDate(), availability.getDate().plusDays(1),
+                availability.getStartTime(), availability.getEndTime());
+    }
 
-                PreparedStatement statement = connection.prepareStatement(sql);
-                statement.setTime(1, Time.valueOf(availabilitiesDTO.getStartTime().toLocalTime()));
-                statement.setTime(2, Time.valueOf(availabilitiesDTO.getEndTime().toLocalTime()));
-                statement.setLong(3, therapistId);
-                statement.setDate(4, Date.valueOf(date));
-                statement.executeUpdate();
+    @Override
+    @Transactional
+    public void addOrUpdateAvailableTime(Long therapistId, AvailabilitiesDTO availabilitiesDTO) {
+        saveAvailabilities(therapistId, availabilitiesDTO.getStartTime().toLocalDate(), availabilitiesDTO.getEndTime().toLocalDate(),
+                availabilitiesDTO.getStartTime().toLocalTime(), availabilitiesDTO.getEndTime().toLocalTime());
+    }
 
-                markAvailabilityAs(therapistId, date, findAvailableTimes(therapistId, date).size() < 1);
+    /**
+     * Writes the same working hours for every day in [from, to) with one batch of MERGE statements.
+     * SLOT_MASK and ISFULL are computed in memory from a single range query over the appointments of these days.
+     */
+    private void saveAvailabilities(Long therapistId, LocalDate from, LocalDate to, LocalTime startTime, LocalTime endTime) {
+        if (!from.isBefore(to))
+            return;
+        Integer duration = jdbcTemplate.queryForList("SELECT DURATION FROM SERVICES WHERE THERAPIST_ID = ?",
+                Integer.class, therapistId).stream().findFirst().orElse(null);
+        Map<LocalDate, List<LocalTime>> appointedTimes = findAppointedTimes(therapistId, from, to);
+
+        List<Object[]> batch = new ArrayList<>();
+        for (LocalDate date = from; date.isBefore(to); date = date.plusDays(1)) {
+            Object mask;
+            boolean isFull;
+            if (duration == null) {
+                // without a service there is no slot grid, so the day can not be booked
+                mask = new SqlParameterValue(Types.VARBINARY, null);
+                isFull = true;
+            } else {
+                SlotGrid grid = SlotGrid.fromAppointments(date, startTime, endTime, duration,
+                        appointedTimes.getOrDefault(date, Collections.emptyList()));
+                mask = grid.toMask();
+                isFull = grid.isFull();
+            }
+            batch.add(new Object[]{therapistId, Date.valueOf(date), Time.valueOf(startTime), Time.valueOf(endTime),
+                    mask, isFull});
+        }
+        jdbcTemplate.batchUpdate("MERGE INTO AVAILABILITY (THERAPIST_ID, AVAILABLE_DATE, START_TIME, END_TIME, SLOT_MASK, ISFULL) " +
+                "KEY (THERAPIST_ID, AVAILABLE_DATE) VALUES (?, ?, ?, ?, ?, ?)", batch);
+    }
 
+    private Map<LocalDate, List<LocalTime>> findAppointedTimes(Long therapistId, LocalDate from, LocalDate to) {
+        Map<LocalDate, List<LocalTime>> appointedTimes = new HashMap<>();
+        String sql = "SELECT START_TIME FROM APPOINTMENTS WHERE THERAPIST_ID = ? AND START_TIME >= ? AND START_TIME < ?";
+        jdbcTemplate.query(sql, resultSet -> {
+            LocalDateTime appointed = resultSet.getTimestamp("start_time").toLocalDateTime();
+            appointedTimes.computeIfAbsent(appointed.toLocalDate(), day -> new ArrayList<>())
+                    .add(appointed.toLocalTime());
+        }, therapistId, Timestamp.valueOf(from.atStartOfDay()), Timestamp.valueOf(to.atStartOfDay()));
+        return appointedTimes;
+    }
 
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Recomputes the slot masks of the working days from today on for a new slot step.
+     * Past days are only reset to an unknown mask, nobody books them anymore.
+     */
+    private void rebuildSlots(Long therapistId, int duration) {
+        Date today = Date.valueOf(LocalDate.now());
+        jdbcTemplate.update("UPDATE AVAILABILITY SET SLOT_MASK = NULL WHERE THERAPIST_ID = ? AND AVAILABLE_DATE < ?",
+                therapistId, today);
+
+        String sql = "SELECT AVAILABLE_DATE, START_TIME, END_TIME FROM AVAILABILITY " +
+                "WHERE THERAPIST_ID = ? AND AVAILABLE_DATE >= ? ORDER BY AVAILABLE_DATE";
+        List<Availability> availabilities = jdbcTemplate.query(sql, (resultSet, rowNum) -> {
+            Availability availability = new Availability();
+            availability.setDate(resultSet.getDate("available_date").toLocalDate());
+            availability.setStartTime(resultSet.getTime("start_time").toLocalTime());
+            availability.setEndTime(resultSet.getTime("end_time").toLocalTime());
+            return availability;
+        }, therapistId, today);
+        if (availabilities.isEmpty())
+            return;
+
+        Map<LocalDate, List<LocalTime>> appointedTimes = findAppointedTimes(therapistId, today.toLocalDate(),
+                availabilities.get(availabilities.size() - 1).getDate().plusDays(1));
+        List<Object[]> batch = new ArrayList<>();
+        for (Availability availability : availabilities) {
+            SlotGrid grid = SlotGrid.fromAppointments(availability.getDate(), availability.getStartTime(),
+                    availability.getEndTime(), duration,
+                    appointedTimes.getOrDefault(availability.getDate(), Collections.emptyList()));
+            batch.add(new Object[]{grid.toMask(), grid.isFull(), therapistId, Date.valueOf(availability.getDate())});
         }
+        jdbcTemplate.batchUpdate("UPDATE AVAILABILITY SET SLOT_MASK = ?, ISFULL = ? " +
+                "WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?", batch);
     }
 
     @Override
     public void deleteAvailableTime(Long therapistId, LocalDate date) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "DELETE FROM AVAILABILITY WHERE THERAPIST_ID = ? and AVAILABLE_DATE = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.setDate(2, Date.valueOf(date));
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String sql = "DELETE FROM AVAILABILITY WHERE THERAPIST_ID = ? and AVAILABLE_DATE = ?";
+        jdbcTemplate.update(sql, therapistId, Date.valueOf(date));
     }
 
     @Override
     public void deleteTherapist(Long therapistId) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "DELETE FROM THERAPISTS WHERE THERAPIST_ID = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        String sql = "DELETE FROM THERAPISTS WHERE THERAPIST_ID = ?";
+        jdbcTemplate.update(sql, therapistId);
     }
 
     @Override
     public Optional<Service> findServiceByTherapist(Long therapistId) {
-        Optional<Service> service = Optional.empty();
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT * FROM SERVICES WHERE THERAPIST_ID = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setLong(1, therapistId);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                service = Optional.of(new Service());
-                service.get().setServiceId(resultSet.getLong("service_id"));
-                service.get().setName(resultSet.getString("name"));
-                service.get().setDescription(resultSet.getString("description"));
-                service.get().setDuration(resultSet.getInt("duration"));
-                service.get().setPrice(resultSet.getInt("price"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return service;
+        String sql = "SELECT * FROM SERVICES WHERE THERAPIST_ID = ?";
+        return jdbcTemplate.query(sql, (resultSet, rowNum) -> {
+            Service service = new Service();
+            service.setServiceId(resultSet.getLong("service_id"));
+            service.setName(resultSet.getString("name"));
+            service.setDescription(resultSet.getString("description"));
+            service.setDuration(resultSet.getInt("duration"));
+            service.setPrice(resultSet.getInt("price"));
+            return service;
+        }, therapistId).stream().findFirst();
     }
 
     @Override
+    @Transactional
     public void addOrUpdateService(Long therapistId, Service service) {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql;
-            if (findServiceByTherapist(therapistId).isEmpty()) {
-                sql = "INSERT INTO SERVICES (NAME, DESCRIPTION, DURATION, PRICE, THERAPIST_ID) " +
-                        "VALUES (?, ?, ?, ?, ?)";
-            } else {
-                sql = "UPDATE SERVICES SET NAME = ?, DESCRIPTION = ?, DURATION = ?, PRICE = ? " +
-                        "WHERE THERAPIST_ID = ?";
+        String sql;
+        Optional<Service> current = findServiceByTherapist(therapistId);
+        if (current.isEmpty()) {
+            sql = "INSERT INTO SERVICES (NAME, DESCRIPTION, DURATION, PRICE, THERAPIST_ID) " +
+                    "VALUES (?, ?, ?, ?, ?)";
+        } else {
+            sql = "UPDATE SERVICES SET NAME = ?, DESCRIPTION = ?, DURATION = ?, PRICE = ? " +
+                    "WHERE THERAPIST_ID = ?";
 
-            }
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, service.getName());
-            statement.setString(2, service.getDescription());
-            statement.setInt(3, service.getDuration());
-            statement.setInt(4, service.getPrice());
-            statement.setLong(5, therapistId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        jdbcTemplate.update(sql, service.getName(), service.getDescription(), service.getDuration(),
+                service.getPrice(), therapistId);
+
+        if (current.isEmpty() || current.get().getDuration() != service.getDuration())
+            rebuildSlots(therapistId, service.getDuration());
     }
 }
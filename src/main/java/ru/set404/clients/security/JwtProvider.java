@@ -1,27 +1,42 @@
 package ru.set404.clients.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.io.Decoders;
 import io.jsonwebtoken.security.Keys;
-import io.jsonwebtoken.security.SignatureException;
-import jakarta.security.auth.message.AuthException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Component;
+import ru.set404.clients.models.Role;
 import ru.set404.clients.models.Therapist;
 
 import javax.crypto.SecretKey;
-import java.security.Key;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Component
 public class JwtProvider {
+    private static final String ROLES = "roles";
+    private static final String NAME = "name";
+    private static final String ID = "id";
+    private static final String TOKEN_VERSION = "ver";
 
     private final SecretKey jwtAccessSecret;
     private final SecretKey jwtRefreshSecret;
@@ -30,12 +45,33 @@ public class JwtProvider {
     @Value("${jwt.secret.refresh.expired-days}")
     private long jwtRefreshExpiredDays;
 
+    private final JwtParser accessParser;
+    private final JwtParser refreshParser;
+    private final Cache<String, Claims> verifiedAccessTokens;
+
+    /**
+     * @param tokenCacheSize number of verified access tokens kept, {@code 0} verifies every token again
+     */
     public JwtProvider(
             @Value("${jwt.secret.access}") String jwtAccessSecret,
-            @Value("${jwt.secret.refresh}") String jwtRefreshSecret
+            @Value("${jwt.secret.refresh}") String jwtRefreshSecret,
+            @Value("${jwt.token-cache.maximum-size:10000}") long tokenCacheSize,
+            MeterRegistry meterRegistry
     ) {
         this.jwtAccessSecret = Keys.hmacShaKeyFor(Decoders.BASE64.decode(jwtAccessSecret));
         this.jwtRefreshSecret = Keys.hmacShaKeyFor(Decoders.BASE64.decode(jwtRefreshSecret));
+        this.accessParser = Jwts.parserBuilder().setSigningKey(this.jwtAccessSecret).build();
+        this.refreshParser = Jwts.parserBuilder().setSigningKey(this.jwtRefreshSecret).build();
+        if (tokenCacheSize > 0) {
+            this.verifiedAccessTokens = Caffeine.newBuilder()
+                    .maximumSize(tokenCacheSize)
+                    .expireAfter(new UntilTokenExpires())
+                    .recordStats()
+                    .build();
+            CaffeineCacheMetrics.monitor(meterRegistry, verifiedAccessTokens, "verifiedAccessTokens");
+        } else {
+            this.verifiedAccessTokens = null;
+        }
     }
 
     public String generateAccessToken(@NonNull Therapist user) {
@@ -46,9 +82,10 @@ public class JwtProvider {
                 .setSubject(user.getPhone())
                 .setExpiration(accessExpiration)
                 .signWith(jwtAccessSecret)
-                .claim("roles", Collections.singletonList(user.getRole()))
-                .claim("name", user.getName())
-                .claim("id", user.getId())
+                .claim(ROLES, Collections.singletonList(user.getRole()))
+                .claim(NAME, user.getName())
+                .claim(ID, user.getId())
+                .claim(TOKEN_VERSION, user.getTokenVersion())
                 .compact();
     }
 
@@ -58,46 +95,88 @@ public class JwtProvider {
         final Date refreshExpiration = Date.from(refreshExpirationInstant);
         return Jwts.builder()
                 .setSubject(user.getPhone())
+                .setId(UUID.randomUUID().toString())
                 .setExpiration(refreshExpiration)
                 .signWith(jwtRefreshSecret)
+                .claim(TOKEN_VERSION, user.getTokenVersion())
                 .compact();
     }
 
-    public boolean validateAccessToken(@NonNull String accessToken) throws AuthException {
-        return validateToken(accessToken, jwtAccessSecret);
+    /**
+     * @return the token version the token was issued with, empty for tokens issued before versions existed
+     */
+    public OptionalInt getTokenVersion(@NonNull Claims claims) {
+        Number version = claims.get(TOKEN_VERSION, Number.class);
+        return version == null ? OptionalInt.empty() : OptionalInt.of(version.intValue());
     }
 
-    public boolean validateRefreshToken(@NonNull String refreshToken) {
-        return validateToken(refreshToken, jwtRefreshSecret);
+    /**
+     * Therapist as described by verified access token claims, without the password.
+     * Only called for tokens that carry a token version.
+     */
+    public Therapist getTherapist(@NonNull Claims claims) {
+        Therapist therapist = new Therapist();
+        therapist.setId(claims.get(ID, Number.class).longValue());
+        therapist.setName(claims.get(NAME, String.class));
+        therapist.setPhone(claims.getSubject());
+        therapist.setRole(Role.valueOf(((List<?>) claims.get(ROLES, List.class)).get(0).toString()));
+        therapist.setTokenVersion(getTokenVersion(claims).orElseThrow());
+        return therapist;
     }
 
-    private boolean validateToken(@NonNull String token, @NonNull Key secret) throws JwtException {
-        try {
-            Jwts.parserBuilder()
-                    .setSigningKey(secret)
-                    .build()
-                    .parseClaimsJws(token);
-            return true;
-        } catch (SignatureException sEx) {
-            sEx.printStackTrace();
-        }
-        return false;
+    /**
+     * Verifies the signature and expiry of an access token with one parse.
+     * Tokens verified before are answered from the cache until their expiry.
+     *
+     * @return the claims, empty when the token is not a valid access token
+     */
+    public Optional<Claims> parseAccessToken(@NonNull String accessToken) {
+        if (verifiedAccessTokens == null)
+            return parse(accessParser, accessToken);
+        Claims claims = verifiedAccessTokens.getIfPresent(accessToken);
+        if (claims != null)
+            return Optional.of(claims);
+        Optional<Claims> parsed = parse(accessParser, accessToken);
+        parsed.ifPresent(verified -> verifiedAccessTokens.put(accessToken, verified));
+        return parsed;
     }
 
-    public Claims getAccessClaims(@NonNull String token) {
-        return getClaims(token, jwtAccessSecret);
+    /**
+     * @return the claims, empty when the token is not a valid refresh token
+     */
+    public Optional<Claims> parseRefreshToken(@NonNull String refreshToken) {
+        return parse(refreshParser, refreshToken);
     }
 
-    public Claims getRefreshClaims(@NonNull String token) {
-        return getClaims(token, jwtRefreshSecret);
+    private static Optional<Claims> parse(JwtParser parser, String token) {
+        try {
+            return Optional.of(parser.parseClaimsJws(token).getBody());
+        } catch (JwtException | IllegalArgumentException e) {
+            log.debug("Rejected JWT token: {}", e.getMessage());
+            return Optional.empty();
+        }
     }
 
-    private Claims getClaims(@NonNull String token, @NonNull Key secret) {
-        return Jwts.parserBuilder()
-                .setSigningKey(secret)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
-    }
+    /**
+     * Keeps a verified token until its own expiry, so a cached token never outlives the token itself.
+     */
+    private static final class UntilTokenExpires implements Expiry<String, Claims> {
+        @Override
+        public long expireAfterCreate(String token, Claims claims, long currentTime) {
+            if (claims.getExpiration() == null)
+                return 0;
+            long millis = claims.getExpiration().getTime() - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+        }
+
+        @Override
+        public long expireAfterUpdate(String token, Claims claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
 
+        @Override
+        public long expireAfterRead(String token, Claims claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
 }
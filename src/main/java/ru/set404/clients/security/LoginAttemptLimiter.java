@@ -0,0 +1,106 @@
+package ru.set404.clients.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.exceptions.TooManyLoginAttemptsException;
+
+import java.time.Duration;
+
+/**
+ * Sliding window limits on login attempts, checked before any password is hashed. Every attempt counts
+ * against the client address; against the phone only attempts that did not succeed count, so a therapist
+ * is not locked out by logging in often.
+ * <p>
+ * The address is the request's remote address. Behind a reverse proxy it is only the client's own address
+ * when server.forward-headers-strategy is set and the proxy is listed in server.tomcat.remoteip.internal-proxies,
+ * otherwise all clients share the proxy's address and the per-address limit throttles every login.
+ * <p>
+ * Each window is estimated from the counts of the current and the previous fixed window, weighted by how much
+ * of the previous one still overlaps, which keeps two counters per key instead of every attempt's time.
+ */
+@Component
+public class LoginAttemptLimiter {
+    private final int perPhone;
+    private final int perAddress;
+    private final long windowNanos;
+    private final Cache<String, SlidingWindow> windows;
+
+    public LoginAttemptLimiter(@Value("${clients.login-limit.per-phone:5}") int perPhone,
+                               @Value("${clients.login-limit.per-address:30}") int perAddress,
+                               @Value("${clients.login-limit.window:1m}") Duration window,
+                               @Value("${clients.login-limit.maximum-size:100000}") long maximumSize) {
+        this.perPhone = perPhone;
+        this.perAddress = perAddress;
+        this.windowNanos = window.toNanos();
+        this.windows = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(window.multipliedBy(2))
+                .build();
+    }
+
+    /**
+     * Counts an attempt of the phone from the address.
+     *
+     * @throws TooManyLoginAttemptsException when either of them used up its window
+     */
+    public void acquire(String phone, String address) {
+        long now = System.nanoTime();
+        acquire("address:" + address, perAddress, now);
+        acquire("phone:" + phone, perPhone, now);
+    }
+
+    /**
+     * Takes the attempt of a successful login back from the phone's window.
+     */
+    public void succeeded(String phone) {
+        SlidingWindow window = windows.getIfPresent("phone:" + phone);
+        if (window != null)
+            window.release();
+    }
+
+    private void acquire(String key, int limit, long now) {
+        long wait = windows.get(key, k -> new SlidingWindow(now)).tryAcquire(now, windowNanos, limit);
+        if (wait > 0)
+            throw new TooManyLoginAttemptsException(Duration.ofNanos(wait));
+    }
+
+    private static final class SlidingWindow {
+        private long start;
+        private int previous;
+        private int current;
+
+        SlidingWindow(long start) {
+            this.start = start;
+        }
+
+        /**
+         * @return 0 when the attempt is counted, otherwise nanoseconds until the current window ends
+         */
+        synchronized long tryAcquire(long now, long window, int limit) {
+            long elapsed = now - start;
+            if (elapsed >= 2 * window) {
+                previous = 0;
+                current = 0;
+                start = now;
+                elapsed = 0;
+            } else if (elapsed >= window) {
+                previous = current;
+                current = 0;
+                start += window;
+                elapsed -= window;
+            }
+            double overlap = (double) (window - elapsed) / window;
+            if (previous * overlap + current + 1 > limit)
+                return window - elapsed;
+            current++;
+            return 0;
+        }
+
+        synchronized void release() {
+            if (current > 0)
+                current--;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ru.set404.clients.security;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.repositories.TherapistsRepository;
+
+import java.time.Duration;
+import java.util.OptionalInt;
+
+/**
+ * Current token version of each therapist, so an access token can be checked without loading the therapist.
+ * {@link ru.set404.clients.services.TherapistService} drops a therapist's entry after a change on this node,
+ * changes made on other nodes are seen once the entry expires after {@code ttl}.
+ */
+@Component
+public class TokenVersions {
+    private final TherapistsRepository repository;
+    private final LoadingCache<Long, OptionalInt> versions;
+
+    public TokenVersions(TherapistsRepository repository, MeterRegistry meterRegistry,
+                         @Value("${jwt.token-versions.maximum-size:100000}") long maximumSize,
+                         @Value("${jwt.token-versions.ttl:30s}") Duration ttl) {
+        this.repository = repository;
+        this.versions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build(therapistId -> this.repository.findTokenVersion(therapistId)
+                        .map(OptionalInt::of).orElse(OptionalInt.empty()));
+        CaffeineCacheMetrics.monitor(meterRegistry, versions, "tokenVersions");
+    }
+
+    /**
+     * @return whether a token of the therapist with this version is still valid, never for a deleted therapist
+     */
+    public boolean isCurrent(Long therapistId, int tokenVersion) {
+        OptionalInt version = versions.get(therapistId);
+        if (version.isEmpty() || tokenVersion > version.getAsInt()) {
+            // issued after the entry was loaded, by another node or for a therapist created since
+            versions.invalidate(therapistId);
+            version = versions.get(therapistId);
+        }
+        return version.isPresent() && tokenVersion == version.getAsInt();
+    }
+
+    public void invalidate(Long therapistId) {
+        versions.invalidate(therapistId);
+    }
+}
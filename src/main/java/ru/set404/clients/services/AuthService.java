@@ -14,14 +14,15 @@ import ru.set404.clients.models.Therapist;
 import ru.set404.clients.security.JwtProvider;
 import ru.set404.clients.security.TherapistDetails;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.OptionalInt;
 
 @Service
 @RequiredArgsConstructor
 public class AuthService {
     private final TherapistDetailsService service;
-    private final Map<String, String> refreshStorage = new HashMap<>();
+    private final RefreshTokenStore refreshTokens;
     private final JwtProvider jwtProvider;
     private final AuthenticationManager authenticationManager;
 
@@ -33,43 +34,51 @@ public class AuthService {
         try {
             authenticationManager.authenticate(authInputToken);
         } catch (BadCredentialsException e) {
-            throw new AuthException(e.getCause());
+            throw new AuthException("Invalid credentials");
         }
 
         final Therapist therapist = ((TherapistDetails) service.loadUserByUsername(authRequest.getLogin())).getTherapist();
         final String accessToken = jwtProvider.generateAccessToken(therapist);
         final String refreshToken = jwtProvider.generateRefreshToken(therapist);
-        refreshStorage.put(therapist.getPhone(), refreshToken);
+        refreshTokens.save(therapist.getPhone(), refreshToken, expiration(refreshToken));
         return new JwtResponse(accessToken, refreshToken);
     }
 
     public JwtResponse getAccessToken(@NonNull String refreshToken) throws AuthException {
-        if (jwtProvider.validateRefreshToken(refreshToken)) {
-            final Claims claims = jwtProvider.getRefreshClaims(refreshToken);
+        final Optional<Claims> verified = jwtProvider.parseRefreshToken(refreshToken);
+        if (verified.isPresent()) {
+            final Claims claims = verified.get();
             final String login = claims.getSubject();
-            final String saveRefreshToken = refreshStorage.get(login);
-            if (saveRefreshToken != null && saveRefreshToken.equals(refreshToken)) {
+            if (refreshTokens.matches(login, refreshToken)) {
                 final Therapist therapist = ((TherapistDetails) service.loadUserByUsername(login)).getTherapist();
-                final String accessToken = jwtProvider.generateAccessToken(therapist);
-                return new JwtResponse(accessToken, null);
+                if (jwtProvider.getTokenVersion(claims).equals(OptionalInt.of(therapist.getTokenVersion()))) {
+                    final String accessToken = jwtProvider.generateAccessToken(therapist);
+                    return new JwtResponse(accessToken, null);
+                }
             }
         }
         return new JwtResponse(null, null);
     }
 
     public JwtResponse refresh(@NonNull String refreshToken) throws AuthException {
-        if (jwtProvider.validateRefreshToken(refreshToken)) {
-            final Claims claims = jwtProvider.getRefreshClaims(refreshToken);
+        final Optional<Claims> verified = jwtProvider.parseRefreshToken(refreshToken);
+        if (verified.isPresent()) {
+            final Claims claims = verified.get();
             final String login = claims.getSubject();
-            final String saveRefreshToken = refreshStorage.get(login);
-            if (saveRefreshToken != null && saveRefreshToken.equals(refreshToken)) {
+            if (refreshTokens.matches(login, refreshToken)) {
                 final Therapist therapist = ((TherapistDetails) service.loadUserByUsername(login)).getTherapist();
-                final String accessToken = jwtProvider.generateAccessToken(therapist);
-                final String newRefreshToken = jwtProvider.generateRefreshToken(therapist);
-                refreshStorage.put(therapist.getPhone(), newRefreshToken);
-                return new JwtResponse(accessToken, newRefreshToken);
+                if (jwtProvider.getTokenVersion(claims).equals(OptionalInt.of(therapist.getTokenVersion()))) {
+                    final String accessToken = jwtProvider.generateAccessToken(therapist);
+                    final String newRefreshToken = jwtProvider.generateRefreshToken(therapist);
+                    if (refreshTokens.rotate(login, refreshToken, newRefreshToken, expiration(newRefreshToken)))
+                        return new JwtResponse(accessToken, newRefreshToken);
+                }
             }
         }
         throw new AuthException("Invalid JWT token");
     }
+
+    private Instant expiration(String refreshToken) {
+        return jwtProvider.parseRefreshToken(refreshToken).orElseThrow().getExpiration().toInstant();
+    }
 }
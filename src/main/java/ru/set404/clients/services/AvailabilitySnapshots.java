@@ -0,0 +1,190 @@
+package ru.set404.clients.services;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.config.WebConfig;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Month availability of a therapist rendered to a JSON file and a gzipped copy, so the public read
+ * is a file transfer without serialization or database access. {@link TherapistService} writes a month
+ * again after each change of it, while holding the therapist lock.
+ * <p>
+ * Every write gets new file names. The files of a replaced snapshot are deleted only once it was replaced
+ * {@code retain} ago, since Tomcat opens a sendfile response only after the handler returned. Files left by
+ * an earlier run are deleted at startup, the index lives in memory only.
+ */
+@Slf4j
+@Component
+public class AvailabilitySnapshots {
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final ObjectWriter writer = WebConfig.responseObjectMapper().writer();
+    private final AtomicLong generations = new AtomicLong(System.currentTimeMillis());
+    private final ConcurrentMap<MonthKey, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final Queue<Retired> retired = new ConcurrentLinkedQueue<>();
+    private final long retainNanos;
+
+    public AvailabilitySnapshots(@Value("${clients.snapshots.enabled:false}") boolean enabled,
+                                 @Value("${clients.snapshots.dir:snapshots}") String directory,
+                                 @Value("${clients.snapshots.retain:1m}") Duration retain) {
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.retainNanos = retain.toNanos();
+        if (enabled)
+            clearDirectory();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the current snapshot of the month, unless it has none or its first listed slot has begun
+     */
+    public Optional<Snapshot> find(Long therapistId, YearMonth month) {
+        Snapshot snapshot = snapshots.get(new MonthKey(therapistId, month));
+        if (snapshot == null || !LocalDateTime.now().isBefore(snapshot.validUntil()))
+            return Optional.empty();
+        return Optional.of(snapshot);
+    }
+
+    /**
+     * Renders the body and replaces the month's snapshot, an empty body only removes it.
+     */
+    public Optional<Snapshot> write(Long therapistId, YearMonth month, List<?> body, LocalDateTime validUntil) {
+        MonthKey key = new MonthKey(therapistId, month);
+        if (body.isEmpty()) {
+            retire(snapshots.remove(key));
+            return Optional.empty();
+        }
+        String name = therapistId + "-" + month + "-" + generations.incrementAndGet();
+        Path json = directory.resolve(name + ".json");
+        Path gzip = directory.resolve(name + ".json.gz");
+        try {
+            byte[] bytes = writer.writeValueAsBytes(body);
+            Path jsonTemp = Files.createTempFile(directory, name, ".tmp");
+            Files.write(jsonTemp, bytes);
+            Path gzipTemp = Files.createTempFile(directory, name, ".tmp");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipTemp))) {
+                out.write(bytes);
+            }
+            Files.move(jsonTemp, json, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(gzipTemp, gzip, StandardCopyOption.ATOMIC_MOVE);
+            Snapshot snapshot = new Snapshot(json, bytes.length, gzip, Files.size(gzip), validUntil);
+            retire(snapshots.put(key, snapshot));
+            return Optional.of(snapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write availability snapshot " + json, e);
+        }
+    }
+
+    public void delete(Long therapistId) {
+        snapshots.keySet().stream()
+                .filter(key -> key.therapistId().equals(therapistId))
+                .forEach(key -> retire(snapshots.remove(key)));
+    }
+
+    /**
+     * Keeps the files of the snapshot just replaced for responses still being sent, and deletes the files
+     * of snapshots replaced longer than {@code retain} ago, however often the month was written since.
+     */
+    private void retire(Snapshot previous) {
+        long now = System.nanoTime();
+        if (previous != null)
+            retired.add(new Retired(previous, now));
+        for (Retired oldest = retired.peek(); oldest != null && now - oldest.at() >= retainNanos; oldest = retired.peek()) {
+            if (!retired.remove(oldest))
+                continue;
+            try {
+                Files.deleteIfExists(oldest.snapshot().json());
+                Files.deleteIfExists(oldest.snapshot().gzip());
+            } catch (IOException e) {
+                log.warn("Cannot delete availability snapshot {}", oldest.snapshot().json(), e);
+            }
+        }
+    }
+
+    /**
+     * Sends the snapshot, gzipped when the client accepts it, through Tomcat's sendfile when the connector
+     * supports it and otherwise by transferring the file channel to the response.
+     */
+    public void send(Snapshot snapshot, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        boolean gzipped = acceptEncoding != null && acceptEncoding.contains("gzip");
+        Path file = gzipped ? snapshot.gzip() : snapshot.json();
+        long size = gzipped ? snapshot.gzipSize() : snapshot.jsonSize();
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzipped)
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        response.setContentLengthLong(size);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, size);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            for (long position = 0; position < size; )
+                position += channel.transferTo(position, size - position, out);
+        }
+    }
+
+    private void clearDirectory() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{json,gz,tmp}")) {
+                for (Path file : files)
+                    Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot prepare availability snapshot directory " + directory, e);
+        }
+    }
+
+    public record Snapshot(Path json, long jsonSize, Path gzip, long gzipSize, LocalDateTime validUntil) {
+    }
+
+    private record MonthKey(Long therapistId, YearMonth month) {
+    }
+
+    private record Retired(Snapshot snapshot, long at) {
+    }
+}
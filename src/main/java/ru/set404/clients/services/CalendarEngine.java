@@ -0,0 +1,334 @@
+package ru.set404.clients.services;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.models.FreeSlot;
+import ru.set404.clients.models.SlotGrid;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Public availability reads served from the {@link SlotStore} so they never touch the database.
+ * A therapist's days are loaded on first read and reloaded by {@link TherapistService} after each
+ * committed write, while it still holds the therapist lock.
+ * Writes made by other nodes or straight in the database are not seen until the days are refreshed.
+ * <p>
+ * The answers of both reads are cached on top of that, since the booking widget polls them and nearly
+ * always gets the same lists. Every refresh or eviction drops exactly the cached days and months it touched.
+ * Concurrent misses on one key share a single load. Once an entry is older than {@code refresh-after}
+ * the next read still gets it while the days behind it are read again from the database in the background,
+ * so writes of other nodes show up too; an entry nobody reads is dropped after {@code ttl}, which bounds
+ * how stale an answer can get.
+ */
+@Component
+public class CalendarEngine {
+    private static final int EARLIEST_SEARCH_DAYS = 90;
+    private static final int EARLIEST_SEARCH_CHUNK_DAYS = 7;
+    private final SlotStore slotStore;
+    private final ExecutorService refreshExecutor;
+    private final LoadingCache<DayKey, List<LocalTime>> availableTimes;
+    private final LoadingCache<MonthKey, List<LocalDate>> availableDates;
+
+    public CalendarEngine(SlotStore slotStore, MeterRegistry meterRegistry,
+                          @Value("${clients.availability-cache.maximum-size:10000}") long maximumSize,
+                          @Value("${clients.availability-cache.ttl:60s}") Duration ttl,
+                          @Value("${clients.availability-cache.refresh-after:10s}") Duration refreshAfter,
+                          @Value("${clients.availability-cache.refresh-threads:2}") int refreshThreads) {
+        this.slotStore = slotStore;
+        this.refreshExecutor = Executors.newFixedThreadPool(refreshThreads, runnable -> {
+            Thread thread = new Thread(runnable, "availability-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.availableTimes = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new UntilFirstSlotPasses(ttl))
+                .refreshAfterWrite(refreshAfter)
+                .executor(refreshExecutor)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public List<LocalTime> load(DayKey key) {
+                        return loadAvailableTimes(key);
+                    }
+
+                    @Override
+                    public List<LocalTime> reload(DayKey key, List<LocalTime> oldValue) {
+                        slotStore.reload(key.therapistId(), key.date(), key.date().plusDays(1));
+                        return loadAvailableTimes(key);
+                    }
+                });
+        this.availableDates = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .refreshAfterWrite(refreshAfter)
+                .executor(refreshExecutor)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public List<LocalDate> load(MonthKey key) {
+                        return loadAvailableDates(key);
+                    }
+
+                    @Override
+                    public List<LocalDate> reload(MonthKey key, List<LocalDate> oldValue) {
+                        LocalDate from = firstUpcomingDay(key.month());
+                        if (from.isBefore(key.month().plusMonths(1).atDay(1)))
+                            slotStore.reload(key.therapistId(), from, key.month().plusMonths(1).atDay(1));
+                        return loadAvailableDates(key);
+                    }
+                });
+        CaffeineCacheMetrics.monitor(meterRegistry, availableTimes, "availableTimes");
+        CaffeineCacheMetrics.monitor(meterRegistry, availableDates, "availableDates");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    public List<LocalTime> findAvailableTimes(Long therapistId, LocalDate date) {
+        if (date.isBefore(LocalDate.now()))
+            return Collections.emptyList();
+        return availableTimes.get(new DayKey(therapistId, date));
+    }
+
+    /**
+     * Free times of several therapists over the days [from, to]. Days already cached are served from the
+     * cache, the rest is read from the slot store in one batch and not cached, then every therapist's
+     * answer is assembled in parallel.
+     *
+     * @return free times per therapist and day, days without free times are left out
+     */
+    public Map<Long, SortedMap<LocalDate, List<LocalTime>>> findAvailableTimes(Collection<Long> therapistIds,
+                                                                             LocalDate from, LocalDate to) {
+        LocalDate first = from.isBefore(LocalDate.now()) ? LocalDate.now() : from;
+        List<DayKey> keys = new ArrayList<>();
+        for (Long therapistId : therapistIds)
+            for (LocalDate date = first; !date.isAfter(to); date = date.plusDays(1))
+                keys.add(new DayKey(therapistId, date));
+        Map<DayKey, List<LocalTime>> cached = availableTimes.getAllPresent(keys);
+        Set<Long> missing = new HashSet<>();
+        for (DayKey key : keys)
+            if (!cached.containsKey(key))
+                missing.add(key.therapistId());
+        Map<Long, List<SlotGrid>> grids = missing.isEmpty()
+                ? Map.of()
+                : slotStore.findSlotGrids(missing, first, to.plusDays(1));
+
+        return therapistIds.parallelStream().distinct().collect(Collectors.toMap(therapistId -> therapistId, therapistId -> {
+            SortedMap<LocalDate, List<LocalTime>> days = new TreeMap<>();
+            for (SlotGrid grid : grids.getOrDefault(therapistId, List.of())) {
+                if (!cached.containsKey(new DayKey(therapistId, grid.getDate())))
+                    days.put(grid.getDate(), grid.getAvailableTimes());
+            }
+            for (LocalDate date = first; !date.isAfter(to); date = date.plusDays(1)) {
+                List<LocalTime> times = cached.get(new DayKey(therapistId, date));
+                if (times != null)
+                    days.put(date, times);
+            }
+            days.values().removeIf(List::isEmpty);
+            return days;
+        }));
+    }
+
+    /**
+     * The earliest free slots across the therapists within {@value EARLIEST_SEARCH_DAYS} days, found by merging
+     * the sorted slots of each therapist through a priority queue. A therapist's days are read a week at a time
+     * and only when the merge gets there, so the work grows with the limit rather than with the calendars.
+     */
+    public List<FreeSlot> findEarliestSlots(Collection<Long> therapistIds, int limit) {
+        LocalDate today = LocalDate.now();
+        LocalDate horizon = today.plusDays(EARLIEST_SEARCH_DAYS);
+        LocalDate firstWeekEnd = today.plusDays(EARLIEST_SEARCH_CHUNK_DAYS);
+        Map<Long, List<SlotGrid>> firstWeek = slotStore.findSlotGrids(therapistIds, today, firstWeekEnd);
+
+        PriorityQueue<SlotCursor> cursors = new PriorityQueue<>(Comparator
+                .comparing((SlotCursor cursor) -> cursor.time)
+                .thenComparing(cursor -> cursor.therapistId));
+        for (Long therapistId : new LinkedHashSet<>(therapistIds)) {
+            SlotCursor cursor = new SlotCursor(therapistId, firstWeek.getOrDefault(therapistId, List.of()),
+                    firstWeekEnd, horizon);
+            if (cursor.advance())
+                cursors.add(cursor);
+        }
+        List<FreeSlot> slots = new ArrayList<>();
+        while (slots.size() < limit && !cursors.isEmpty()) {
+            SlotCursor cursor = cursors.poll();
+            slots.add(new FreeSlot(cursor.therapistId, cursor.time));
+            if (cursor.advance())
+                cursors.add(cursor);
+        }
+        return slots;
+    }
+
+    /**
+     * Loads the slot store for the therapists in one batch where the store supports it,
+     * so the caches can then be filled without a query per therapist.
+     */
+    public void preload(Collection<Long> therapistIds, LocalDate from, LocalDate to) {
+        slotStore.findSlotGrids(therapistIds, from, to);
+    }
+
+    public List<LocalDate> findAvailableDates(Long therapistId, LocalDate date) {
+        return availableDates.get(new MonthKey(therapistId, YearMonth.from(date)));
+    }
+
+    private List<LocalTime> loadAvailableTimes(DayKey key) {
+        return slotStore.findSlotGrid(key.therapistId(), key.date())
+                .<List<LocalTime>>map(grid -> List.copyOf(grid.getAvailableTimes()))
+                .orElse(Collections.emptyList());
+    }
+
+    /**
+     * @return grids of the month's days from today on that still have a free slot, read in one pass
+     */
+    public List<SlotGrid> findAvailableGrids(Long therapistId, LocalDate date) {
+        YearMonth month = YearMonth.from(date);
+        LocalDate from = firstUpcomingDay(month);
+        LocalDate to = month.plusMonths(1).atDay(1);
+        if (!from.isBefore(to))
+            return List.of();
+        List<SlotGrid> availableGrids = new ArrayList<>();
+        for (SlotGrid grid : slotStore.findSlotGrids(therapistId, from, to)) {
+            if (grid.hasAvailableTime())
+                availableGrids.add(grid);
+        }
+        return availableGrids;
+    }
+
+    private List<LocalDate> loadAvailableDates(MonthKey key) {
+        return findAvailableGrids(key.therapistId(), key.month().atDay(1)).stream()
+                .map(SlotGrid::getDate)
+                .toList();
+    }
+
+    private static LocalDate firstUpcomingDay(YearMonth month) {
+        LocalDate monthStart = month.atDay(1);
+        return monthStart.isBefore(LocalDate.now()) ? LocalDate.now() : monthStart;
+    }
+
+    /**
+     * Reloads one day after a booking, cancellation or availability change of that day.
+     */
+    public void refresh(Long therapistId, LocalDate date) {
+        slotStore.reload(therapistId, date, date.plusDays(1));
+        availableTimes.invalidate(new DayKey(therapistId, date));
+        availableDates.invalidate(new MonthKey(therapistId, YearMonth.from(date)));
+    }
+
+    /**
+     * Drops the whole calendar after a change that touches many days, the next read loads it again.
+     */
+    public void evict(Long therapistId) {
+        slotStore.evict(therapistId);
+        availableTimes.asMap().keySet().removeIf(key -> key.therapistId().equals(therapistId));
+        availableDates.asMap().keySet().removeIf(key -> key.therapistId().equals(therapistId));
+    }
+
+    /**
+     * Free slots of one therapist in time order, reading the next week from the slot store when the current one is used up.
+     */
+    private final class SlotCursor {
+        private final Long therapistId;
+        private final LocalDate horizon;
+        private Iterator<SlotGrid> grids;
+        private LocalDate readUntil;
+        private SlotGrid grid;
+        private BitSet available;
+        private int slot;
+        private LocalDateTime time;
+
+        private SlotCursor(Long therapistId, List<SlotGrid> firstGrids, LocalDate readUntil, LocalDate horizon) {
+            this.therapistId = therapistId;
+            this.grids = firstGrids.iterator();
+            this.readUntil = readUntil;
+            this.horizon = horizon;
+        }
+
+        /**
+         * @return false when there is no free slot left before the horizon
+         */
+        private boolean advance() {
+            while (true) {
+                if (grid != null) {
+                    slot = available.nextSetBit(slot + 1);
+                    if (slot >= 0) {
+                        time = grid.getDate().atTime(grid.timeOf(slot));
+                        return true;
+                    }
+                    grid = null;
+                } else if (grids.hasNext()) {
+                    grid = grids.next();
+                    available = grid.getAvailableSlots();
+                    slot = -1;
+                } else if (readUntil.isBefore(horizon)) {
+                    LocalDate next = readUntil.plusDays(EARLIEST_SEARCH_CHUNK_DAYS);
+                    grids = slotStore.findSlotGrids(therapistId, readUntil, next.isBefore(horizon) ? next : horizon).iterator();
+                    readUntil = next;
+                } else {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private record DayKey(Long therapistId, LocalDate date) {
+    }
+
+    private record MonthKey(Long therapistId, YearMonth month) {
+    }
+
+    /**
+     * Times of today go stale when their slot starts, so such an entry lives at most until its first time.
+     */
+    private record UntilFirstSlotPasses(Duration ttl) implements Expiry<DayKey, List<LocalTime>> {
+
+        @Override
+        public long expireAfterCreate(DayKey key, List<LocalTime> times, long currentTime) {
+            long ttlNanos = ttl.toNanos();
+            if (times.isEmpty() || !key.date().isEqual(LocalDate.now()))
+                return ttlNanos;
+            long untilFirstSlot = Duration.between(LocalDateTime.now(), key.date().atTime(times.get(0))).toNanos();
+            return Math.max(0, Math.min(ttlNanos, untilFirstSlot));
+        }
+
+        @Override
+        public long expireAfterUpdate(DayKey key, List<LocalTime> times, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, times, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(DayKey key, List<LocalTime> times, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.set404.clients.services;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.models.SlotGrid;
+import ru.set404.clients.repositories.TherapistsRepository;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every working day from today on as a sorted map per therapist, replaced copy-on-write on each reload.
+ * The database is never read inside a map update, which would hold the map's bin lock for the whole query
+ * and stall the other therapists hashed to it. Rows are read first and installed by a compare-and-set instead.
+ */
+@Component
+@ConditionalOnProperty(name = "clients.slot-store.mode", havingValue = "heap", matchIfMissing = true)
+public class HeapSlotStore implements SlotStore {
+    private static final int RELOAD_ATTEMPTS = 3;
+
+    private final TherapistsRepository repository;
+    private final ConcurrentMap<Long, NavigableMap<LocalDate, SlotGrid>> calendars = new ConcurrentHashMap<>();
+    // bumped before every reload or eviction, see install(...)
+    private final AtomicLong changes = new AtomicLong();
+
+    public HeapSlotStore(TherapistsRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public Optional<SlotGrid> findSlotGrid(Long therapistId, LocalDate date) {
+        return Optional.ofNullable(calendar(therapistId).get(date));
+    }
+
+    @Override
+    public List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from, LocalDate to) {
+        return List.copyOf(calendar(therapistId).subMap(from, true, to, false).values());
+    }
+
+    /**
+     * Therapists that are not stored yet are read with one query. Their calendars are kept only if no
+     * reload or eviction started since that query, otherwise a refresh that found nothing to update
+     * could be followed by older rows.
+     */
+    @Override
+    public Map<Long, List<SlotGrid>> findSlotGrids(Collection<Long> therapistIds, LocalDate from, LocalDate to) {
+        Map<Long, List<SlotGrid>> grids = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long therapistId : therapistIds) {
+            NavigableMap<LocalDate, SlotGrid> calendar = calendars.get(therapistId);
+            if (calendar == null)
+                missing.add(therapistId);
+            else
+                putDays(grids, therapistId, calendar, from, to);
+        }
+        if (missing.isEmpty())
+            return grids;
+
+        long seen = changes.get();
+        Map<Long, List<SlotGrid>> loaded = repository.findSlotGrids(missing, LocalDate.now());
+        for (Map.Entry<Long, List<SlotGrid>> entry : loaded.entrySet())
+            putDays(grids, entry.getKey(), install(entry.getKey(), seen, toCalendar(entry.getValue())), from, to);
+        return grids;
+    }
+
+    /**
+     * Keeps a calendar read from the database unless one is stored already or a reload or eviction started
+     * since {@code seen}, otherwise a refresh that found nothing to update could be followed by older rows.
+     *
+     * @return the calendar to answer from
+     */
+    private NavigableMap<LocalDate, SlotGrid> install(Long therapistId, long seen, NavigableMap<LocalDate, SlotGrid> calendar) {
+        NavigableMap<LocalDate, SlotGrid> stored = calendars.compute(therapistId, (id, current) ->
+                current != null || changes.get() != seen ? current : calendar);
+        return stored != null ? stored : calendar;
+    }
+
+    private static void putDays(Map<Long, List<SlotGrid>> grids, Long therapistId,
+                                NavigableMap<LocalDate, SlotGrid> calendar, LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, SlotGrid> days = calendar.subMap(from, true, to, false);
+        if (!days.isEmpty())
+            grids.put(therapistId, List.copyOf(days.values()));
+    }
+
+    /**
+     * The days are read after taking the stored calendar and replaced only if it is still the same instance,
+     * otherwise read again. A background refresh and a writer's refresh of the same therapist therefore
+     * cannot overtake each other. A calendar that keeps changing under the reload is dropped and loaded again.
+     */
+    @Override
+    public void reload(Long therapistId, LocalDate from, LocalDate to) {
+        changes.incrementAndGet();
+        for (int attempt = 0; attempt < RELOAD_ATTEMPTS; attempt++) {
+            NavigableMap<LocalDate, SlotGrid> calendar = calendars.get(therapistId);
+            if (calendar == null)
+                return;
+            NavigableMap<LocalDate, SlotGrid> updated = new TreeMap<>(calendar);
+            updated.subMap(from, true, to, false).clear();
+            for (SlotGrid grid : repository.findSlotGrids(therapistId, from, to))
+                updated.put(grid.getDate(), grid);
+            NavigableMap<LocalDate, SlotGrid> replacement = Collections.unmodifiableNavigableMap(updated);
+            if (calendars.computeIfPresent(therapistId, (id, current) -> current == calendar ? replacement : current) == replacement)
+                return;
+        }
+        evict(therapistId);
+    }
+
+    @Override
+    public void evict(Long therapistId) {
+        changes.incrementAndGet();
+        calendars.remove(therapistId);
+    }
+
+    private NavigableMap<LocalDate, SlotGrid> calendar(Long therapistId) {
+        NavigableMap<LocalDate, SlotGrid> calendar = calendars.get(therapistId);
+        if (calendar != null)
+            return calendar;
+        long seen = changes.get();
+        calendar = toCalendar(repository.findSlotGrids(therapistId, LocalDate.now()));
+        // do not keep entries for unknown ids or therapists without working days
+        return calendar.isEmpty() ? calendar : install(therapistId, seen, calendar);
+    }
+
+    private static NavigableMap<LocalDate, SlotGrid> toCalendar(List<SlotGrid> grids) {
+        NavigableMap<LocalDate, SlotGrid> calendar = new TreeMap<>();
+        for (SlotGrid grid : grids)
+            calendar.put(grid.getDate(), grid);
+        return Collections.unmodifiableNavigableMap(calendar);
+    }
+}
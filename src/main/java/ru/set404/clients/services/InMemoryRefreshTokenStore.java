@@ -0,0 +1,66 @@
+package ru.set404.clients.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Refresh tokens of this node only, each dropped when it expires. Rotation is a compare-and-set on the entry.
+ */
+@Component
+@ConditionalOnProperty(name = "clients.refresh-tokens.store", havingValue = "memory", matchIfMissing = true)
+public class InMemoryRefreshTokenStore implements RefreshTokenStore {
+    private final Cache<String, StoredToken> tokens;
+
+    public InMemoryRefreshTokenStore(@Value("${clients.refresh-tokens.maximum-size:100000}") long maximumSize) {
+        this.tokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new UntilTokenExpires())
+                .build();
+    }
+
+    @Override
+    public void save(String login, String refreshToken, Instant expiresAt) {
+        tokens.put(login, new StoredToken(RefreshTokenStore.hash(refreshToken), expiresAt));
+    }
+
+    @Override
+    public boolean matches(String login, String refreshToken) {
+        StoredToken stored = tokens.getIfPresent(login);
+        return stored != null && stored.hash().equals(RefreshTokenStore.hash(refreshToken));
+    }
+
+    @Override
+    public boolean rotate(String login, String current, String next, Instant nextExpiresAt) {
+        StoredToken stored = tokens.getIfPresent(login);
+        if (stored == null || !stored.hash().equals(RefreshTokenStore.hash(current)))
+            return false;
+        return tokens.asMap().replace(login, stored, new StoredToken(RefreshTokenStore.hash(next), nextExpiresAt));
+    }
+
+    private record StoredToken(String hash, Instant expiresAt) {
+    }
+
+    private static final class UntilTokenExpires implements Expiry<String, StoredToken> {
+        @Override
+        public long expireAfterCreate(String login, StoredToken token, long currentTime) {
+            return Math.max(0, Duration.between(Instant.now(), token.expiresAt()).toNanos());
+        }
+
+        @Override
+        public long expireAfterUpdate(String login, StoredToken token, long currentTime, long currentDuration) {
+            return expireAfterCreate(login, token, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String login, StoredToken token, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
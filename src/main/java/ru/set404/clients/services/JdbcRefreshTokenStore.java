@@ -0,0 +1,88 @@
+package ru.set404.clients.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Refresh tokens in the REFRESH_TOKENS table, so every node accepts the tokens issued by the others.
+ * Rotation is one conditional UPDATE on the login's row. Checks without rotation read through a local cache,
+ * so a token rotated on another node is still accepted here for at most {@code cache-ttl}.
+ * Expired rows are deleted on a save, at most once per {@code purge-interval}.
+ */
+@Component
+@ConditionalOnProperty(name = "clients.refresh-tokens.store", havingValue = "jdbc")
+public class JdbcRefreshTokenStore implements RefreshTokenStore {
+    private final JdbcTemplate jdbcTemplate;
+    private final Cache<String, StoredToken> tokens;
+    private final long purgeIntervalMillis;
+    private final AtomicLong nextPurge = new AtomicLong();
+
+    public JdbcRefreshTokenStore(JdbcTemplate jdbcTemplate,
+                                 @Value("${clients.refresh-tokens.maximum-size:100000}") long maximumSize,
+                                 @Value("${clients.refresh-tokens.cache-ttl:10s}") Duration cacheTtl,
+                                 @Value("${clients.refresh-tokens.purge-interval:10m}") Duration purgeInterval) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.tokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(cacheTtl)
+                .build();
+        this.purgeIntervalMillis = purgeInterval.toMillis();
+    }
+
+    @Override
+    public void save(String login, String refreshToken, Instant expiresAt) {
+        String hash = RefreshTokenStore.hash(refreshToken);
+        jdbcTemplate.update("MERGE INTO REFRESH_TOKENS (LOGIN, TOKEN_HASH, EXPIRES_AT) KEY (LOGIN) VALUES (?, ?, ?)",
+                login, hash, Timestamp.from(expiresAt));
+        tokens.put(login, new StoredToken(hash, expiresAt));
+        purgeExpired();
+    }
+
+    @Override
+    public boolean matches(String login, String refreshToken) {
+        StoredToken stored = tokens.get(login, this::findToken);
+        return stored != null && Instant.now().isBefore(stored.expiresAt())
+                && stored.hash().equals(RefreshTokenStore.hash(refreshToken));
+    }
+
+    @Override
+    public boolean rotate(String login, String current, String next, Instant nextExpiresAt) {
+        String hash = RefreshTokenStore.hash(next);
+        boolean rotated = jdbcTemplate.update("UPDATE REFRESH_TOKENS SET TOKEN_HASH = ?, EXPIRES_AT = ? " +
+                        "WHERE LOGIN = ? AND TOKEN_HASH = ? AND EXPIRES_AT > ?",
+                hash, Timestamp.from(nextExpiresAt), login, RefreshTokenStore.hash(current),
+                Timestamp.from(Instant.now())) == 1;
+        if (rotated)
+            tokens.put(login, new StoredToken(hash, nextExpiresAt));
+        else
+            tokens.invalidate(login);
+        return rotated;
+    }
+
+    private StoredToken findToken(String login) {
+        return jdbcTemplate.query("SELECT TOKEN_HASH, EXPIRES_AT FROM REFRESH_TOKENS WHERE LOGIN = ? AND EXPIRES_AT > ?",
+                        (resultSet, rowNum) -> new StoredToken(resultSet.getString("token_hash"),
+                                resultSet.getTimestamp("expires_at").toInstant()),
+                        login, Timestamp.from(Instant.now()))
+                .stream().findFirst().orElse(null);
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        long next = nextPurge.get();
+        if (now >= next && nextPurge.compareAndSet(next, now + purgeIntervalMillis))
+            jdbcTemplate.update("DELETE FROM REFRESH_TOKENS WHERE EXPIRES_AT <= ?", Timestamp.from(Instant.now()));
+    }
+
+    private record StoredToken(String hash, Instant expiresAt) {
+    }
+}
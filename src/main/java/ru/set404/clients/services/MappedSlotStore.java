@@ -0,0 +1,333 @@
+package ru.set404.clients.services;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.models.SlotGrid;
+import ru.set404.clients.repositories.TherapistsRepository;
+import ru.set404.clients.util.StripedLock;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Slot grids kept in a memory-mapped file instead of the heap, so the calendars of many thousands
+ * of therapists cost a few bytes of GC heap and are still there after a restart.
+ * <p>
+ * The file is a 32 byte header followed by one region per therapist id up to {@code therapists}.
+ * A region starts with a 32 byte record holding the epoch day its stored window ends at (0 when the
+ * therapist is not loaded) and has one 32 byte record per day of a {@code horizon-days} long ring:
+ * <pre>
+ *  0 seq | 4 epoch day | 8 start minute, end minute | 12 duration, flags | 16 mask, 128 slots
+ * </pre>
+ * Writers hold the therapist lock and make the sequence odd while they change a record, readers take
+ * no lock and read again when the sequence was odd or moved. A day with more than 128 slots or times
+ * off the minute is only marked as present and read from the database, so are days outside the window.
+ * <p>
+ * A record can be left half written when the process dies, so the stored calendars are only trusted
+ * after a clean shutdown; otherwise every therapist is loaded again from the database on first read.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "clients.slot-store.mode", havingValue = "mapped")
+public class MappedSlotStore implements SlotStore {
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int RECORD = 32;
+    private static final int MAGIC = 0x534C4F54;
+    private static final int VERSION = 1;
+    private static final int MAX_SLOTS = 128;
+
+    // file header
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_HORIZON = 8;
+    private static final int HEADER_THERAPISTS = 12;
+    private static final int HEADER_CLEAN = 16;
+    // region header
+    private static final int LOADED_UNTIL = 4;
+    // day record
+    private static final int SEQ = 0;
+    private static final int DAY = 4;
+    private static final int TIMES = 8;
+    private static final int SHAPE = 12;
+    private static final int MASK = 16;
+    private static final int PRESENT = 1;
+    private static final int OVERFLOW = 2;
+    // a record still odd after this many reads is left by a writer that died, it is read from the database
+    private static final int MAX_READ_ATTEMPTS = 1000;
+
+    private final TherapistsRepository repository;
+    private final int horizon;
+    private final int therapists;
+    private final MappedByteBuffer mapping;
+    private final ByteBuffer buffer;
+    private final StripedLock locks = new StripedLock(64);
+    private final SlotStore outOfRange;
+
+    public MappedSlotStore(TherapistsRepository repository,
+                           @Value("${clients.slot-store.path:slots.dat}") String path,
+                           @Value("${clients.slot-store.horizon-days:180}") int horizon,
+                           @Value("${clients.slot-store.therapists:16384}") int therapists) {
+        long size = RECORD + (long) therapists * (horizon + 1) * RECORD;
+        if (horizon <= 0 || therapists <= 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Slot store of " + therapists + " therapists and "
+                    + horizon + " days does not fit in one mapping");
+        this.repository = repository;
+        this.horizon = horizon;
+        this.therapists = therapists;
+        this.outOfRange = new HeapSlotStore(repository);
+        this.mapping = map(Path.of(path), size);
+        this.buffer = mapping;
+
+        boolean compatible = (int) INT.get(buffer, HEADER_MAGIC) == MAGIC
+                && (int) INT.get(buffer, HEADER_VERSION) == VERSION
+                && (int) INT.get(buffer, HEADER_HORIZON) == horizon
+                && (int) INT.get(buffer, HEADER_THERAPISTS) == therapists;
+        if (!compatible || (int) INT.get(buffer, HEADER_CLEAN) != 1) {
+            log.info("Slot store {} is new or was not closed cleanly, calendars are loaded again", path);
+            for (int index = 0; index < therapists; index++) {
+                int region = regionOffset(index);
+                INT.set(buffer, region + LOADED_UNTIL, 0);
+                // a write cut off by a crash leaves its sequence odd, which readers would wait on forever
+                for (int slot = 0; slot < horizon; slot++)
+                    INT.set(buffer, region + RECORD + slot * RECORD + SEQ, 0);
+            }
+            INT.set(buffer, HEADER_MAGIC, MAGIC);
+            INT.set(buffer, HEADER_VERSION, VERSION);
+            INT.set(buffer, HEADER_HORIZON, horizon);
+            INT.set(buffer, HEADER_THERAPISTS, therapists);
+        }
+        INT.setVolatile(buffer, HEADER_CLEAN, 0);
+        mapping.force();
+    }
+
+    private static MappedByteBuffer map(Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != size)
+                channel.truncate(0);
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map slot store " + path, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        mapping.force();
+        INT.setVolatile(buffer, HEADER_CLEAN, 1);
+        mapping.force();
+    }
+
+    @Override
+    public Optional<SlotGrid> findSlotGrid(Long therapistId, LocalDate date) {
+        if (!isStored(therapistId))
+            return outOfRange.findSlotGrid(therapistId, date);
+        int day = (int) date.toEpochDay();
+        int today = (int) LocalDate.now().toEpochDay();
+        if (day < today || day >= today + horizon)
+            return repository.findSlotGrid(therapistId, date);
+        return readDay(therapistId, ensureLoaded(therapistId, day + 1), day);
+    }
+
+    @Override
+    public List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from, LocalDate to) {
+        if (!isStored(therapistId))
+            return outOfRange.findSlotGrids(therapistId, from, to);
+        LocalDate today = LocalDate.now();
+        LocalDate limit = today.plusDays(horizon);
+        LocalDate storedFrom = from.isBefore(today) ? today : from;
+        LocalDate storedTo = to.isAfter(limit) ? limit : to;
+
+        List<SlotGrid> grids = new ArrayList<>();
+        if (from.isBefore(storedFrom))
+            grids.addAll(repository.findSlotGrids(therapistId, from, storedFrom.isBefore(to) ? storedFrom : to));
+        if (storedFrom.isBefore(storedTo)) {
+            int region = ensureLoaded(therapistId, (int) storedTo.toEpochDay());
+            for (int day = (int) storedFrom.toEpochDay(); day < storedTo.toEpochDay(); day++)
+                readDay(therapistId, region, day).ifPresent(grids::add);
+        }
+        if (to.isAfter(storedTo))
+            grids.addAll(repository.findSlotGrids(therapistId, storedTo.isAfter(from) ? storedTo : from, to));
+        return grids;
+    }
+
+    @Override
+    public void reload(Long therapistId, LocalDate from, LocalDate to) {
+        if (!isStored(therapistId)) {
+            outOfRange.reload(therapistId, from, to);
+            return;
+        }
+        int region = regionOffset(therapistId.intValue() - 1);
+        Lock lock = locks.get(therapistId);
+        lock.lock();
+        try {
+            int loadedUntil = (int) INT.getAcquire(buffer, region + LOADED_UNTIL);
+            int first = (int) Math.max(from.toEpochDay(), LocalDate.now().toEpochDay());
+            int last = (int) Math.min(to.toEpochDay(), loadedUntil);
+            if (first < last)
+                writeDays(therapistId, region, first, last);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void evict(Long therapistId) {
+        if (!isStored(therapistId)) {
+            outOfRange.evict(therapistId);
+            return;
+        }
+        Lock lock = locks.get(therapistId);
+        lock.lock();
+        try {
+            INT.setRelease(buffer, regionOffset(therapistId.intValue() - 1) + LOADED_UNTIL, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isStored(Long therapistId) {
+        return therapistId != null && therapistId >= 1 && therapistId <= therapists;
+    }
+
+    private int regionOffset(int index) {
+        return RECORD + index * (horizon + 1) * RECORD;
+    }
+
+    private int dayOffset(int region, int day) {
+        return region + RECORD + Math.floorMod(day, horizon) * RECORD;
+    }
+
+    /**
+     * Makes sure the window of the therapist reaches the given day, loading the missing days under the lock.
+     */
+    private int ensureLoaded(Long therapistId, int until) {
+        int region = regionOffset(therapistId.intValue() - 1);
+        int today = (int) LocalDate.now().toEpochDay();
+        int loadedUntil = (int) INT.getAcquire(buffer, region + LOADED_UNTIL);
+        if (loadedUntil > today && loadedUntil >= until)
+            return region;
+
+        Lock lock = locks.get(therapistId);
+        lock.lock();
+        try {
+            loadedUntil = (int) INT.getAcquire(buffer, region + LOADED_UNTIL);
+            if (loadedUntil > today && loadedUntil >= until)
+                return region;
+            int first = loadedUntil > today ? loadedUntil : today;
+            writeDays(therapistId, region, first, today + horizon);
+            INT.setRelease(buffer, region + LOADED_UNTIL, today + horizon);
+        } finally {
+            lock.unlock();
+        }
+        return region;
+    }
+
+    private void writeDays(Long therapistId, int region, int first, int last) {
+        Iterator<SlotGrid> grids = repository.findSlotGrids(therapistId,
+                LocalDate.ofEpochDay(first), LocalDate.ofEpochDay(last)).iterator();
+        SlotGrid next = grids.hasNext() ? grids.next() : null;
+        for (int day = first; day < last; day++) {
+            if (next != null && next.getDate().toEpochDay() == day) {
+                writeDay(dayOffset(region, day), day, next);
+                next = grids.hasNext() ? grids.next() : null;
+            } else {
+                writeDay(dayOffset(region, day), day, null);
+            }
+        }
+    }
+
+    private void writeDay(int offset, int day, SlotGrid grid) {
+        int times = 0;
+        int shape = 0;
+        long low = 0;
+        long high = 0;
+        if (grid != null && fitsRecord(grid)) {
+            times = minuteOf(grid.getStartTime()) << 16 | minuteOf(grid.getEndTime());
+            shape = grid.getDuration() << 16 | PRESENT;
+            long[] booked = grid.getBooked().toLongArray();
+            low = booked.length > 0 ? booked[0] : 0;
+            high = booked.length > 1 ? booked[1] : 0;
+        } else if (grid != null) {
+            shape = PRESENT | OVERFLOW;
+        }
+
+        int seq = (int) INT.get(buffer, offset + SEQ) | 1;
+        INT.setOpaque(buffer, offset + SEQ, seq);
+        VarHandle.storeStoreFence();
+        INT.set(buffer, offset + DAY, day);
+        INT.set(buffer, offset + TIMES, times);
+        INT.set(buffer, offset + SHAPE, shape);
+        LONG.set(buffer, offset + MASK, low);
+        LONG.set(buffer, offset + MASK + 8, high);
+        INT.setRelease(buffer, offset + SEQ, seq + 1);
+    }
+
+    private Optional<SlotGrid> readDay(Long therapistId, int region, int day) {
+        int offset = dayOffset(region, day);
+        int storedDay;
+        int times;
+        int shape;
+        long low;
+        long high;
+        LocalDate date = LocalDate.ofEpochDay(day);
+        for (int attempt = 0; ; attempt++) {
+            if (attempt == MAX_READ_ATTEMPTS)
+                return repository.findSlotGrid(therapistId, date);
+            int seq = (int) INT.getAcquire(buffer, offset + SEQ);
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            storedDay = (int) INT.get(buffer, offset + DAY);
+            times = (int) INT.get(buffer, offset + TIMES);
+            shape = (int) INT.get(buffer, offset + SHAPE);
+            low = (long) LONG.get(buffer, offset + MASK);
+            high = (long) LONG.get(buffer, offset + MASK + 8);
+            VarHandle.loadLoadFence();
+            if ((int) INT.getOpaque(buffer, offset + SEQ) == seq)
+                break;
+        }
+
+        if (storedDay != day || (shape & PRESENT) == 0)
+            return Optional.empty();
+        if ((shape & OVERFLOW) != 0)
+            return repository.findSlotGrid(therapistId, date);
+        return Optional.of(new SlotGrid(date,
+                LocalTime.ofSecondOfDay((times >>> 16) * 60L),
+                LocalTime.ofSecondOfDay((times & 0xFFFF) * 60L),
+                shape >>> 16,
+                BitSet.valueOf(new long[]{low, high})));
+    }
+
+    private static boolean fitsRecord(SlotGrid grid) {
+        return grid.getSlotCount() <= MAX_SLOTS
+                && grid.getStartTime().toSecondOfDay() % 60 == 0
+                && grid.getEndTime().toSecondOfDay() % 60 == 0
+                && grid.getDuration() < 1 << 15;
+    }
+
+    private static int minuteOf(LocalTime time) {
+        return time.toSecondOfDay() / 60;
+    }
+}
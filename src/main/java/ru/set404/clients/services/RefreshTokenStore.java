@@ -0,0 +1,36 @@
+package ru.set404.clients.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * The one valid refresh token of each login. Tokens are kept as SHA-256 hashes only and are gone once they expire.
+ */
+public interface RefreshTokenStore {
+
+    /**
+     * Replaces whatever token the login had.
+     */
+    void save(String login, String refreshToken, Instant expiresAt);
+
+    boolean matches(String login, String refreshToken);
+
+    /**
+     * Replaces the token only if it still is {@code current}, so of two refreshes with the same token one fails.
+     *
+     * @return whether {@code next} was stored
+     */
+    boolean rotate(String login, String current, String next, Instant nextExpiresAt);
+
+    static String hash(String refreshToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(refreshToken.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
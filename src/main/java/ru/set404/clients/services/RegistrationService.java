@@ -7,18 +7,25 @@ import ru.set404.clients.exceptions.UserAlreadyExistException;
 import ru.set404.clients.models.Role;
 import ru.set404.clients.models.Therapist;
 import ru.set404.clients.repositories.TherapistsRepository;
+import ru.set404.clients.security.TokenVersions;
 
 @Service
 @RequiredArgsConstructor
 public class RegistrationService {
     private final TherapistsRepository therapistsRepository;
     private final PasswordEncoder passwordEncoder;
+    private final TokenVersions tokenVersions;
+    private final TherapistDetailsService therapistDetails;
 
     public Long saveTherapist(Therapist therapist) {
         if (therapistsRepository.findTherapistByPhone(therapist.getPhone()).isPresent())
             throw new UserAlreadyExistException();
         therapist.setPassword(passwordEncoder.encode(therapist.getPassword()));
         therapist.setRole(Role.USER);
-        return therapistsRepository.createTherapist(therapist);
+        Long therapistId = therapistsRepository.createTherapist(therapist);
+        // the id and the phone may have belonged to a deleted therapist that is still cached
+        tokenVersions.invalidate(therapistId);
+        therapistDetails.evict(therapist.getPhone());
+        return therapistId;
     }
 }
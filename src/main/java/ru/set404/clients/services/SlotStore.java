@@ -0,0 +1,47 @@
+package ru.set404.clients.services;
+
+import ru.set404.clients.models.SlotGrid;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Slot grids of the upcoming working days, kept per therapist outside the database.
+ * A therapist is read from the database on first access and stays stored until evicted.
+ */
+public interface SlotStore {
+
+    Optional<SlotGrid> findSlotGrid(Long therapistId, LocalDate date);
+
+    /**
+     * @return grids of the working days in [from, to), ordered by date
+     */
+    List<SlotGrid> findSlotGrids(Long therapistId, LocalDate from, LocalDate to);
+
+    /**
+     * Grids of several therapists at once, by default one lookup after another.
+     *
+     * @return grids of the working days in [from, to) per therapist id, ids without such days are left out
+     */
+    default Map<Long, List<SlotGrid>> findSlotGrids(Collection<Long> therapistIds, LocalDate from, LocalDate to) {
+        Map<Long, List<SlotGrid>> grids = new HashMap<>();
+        for (Long therapistId : therapistIds) {
+            List<SlotGrid> therapistGrids = findSlotGrids(therapistId, from, to);
+            if (!therapistGrids.isEmpty())
+                grids.put(therapistId, therapistGrids);
+        }
+        return grids;
+    }
+
+    /**
+     * Reads the days in [from, to) again from the database when the therapist is stored.
+     * Reloads of one therapist are serialized, so an older read never replaces a newer one.
+     */
+    void reload(Long therapistId, LocalDate from, LocalDate to);
+
+    void evict(Long therapistId);
+}
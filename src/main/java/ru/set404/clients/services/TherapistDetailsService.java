@@ -1,6 +1,11 @@
 package ru.set404.clients.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -9,26 +14,69 @@ import ru.set404.clients.models.Therapist;
 import ru.set404.clients.repositories.TherapistsRepository;
 import ru.set404.clients.security.TherapistDetails;
 
+import java.time.Duration;
 import java.util.Optional;
 
+/**
+ * Therapists by phone for login, token refresh and the database principal mode, cached so that
+ * authentication does not query the database every time. Unknown phones are not cached.
+ * <p>
+ * {@link TherapistService} and {@link RegistrationService} evict a therapist after changing it on this node.
+ * Changes made on other nodes are seen once the entry expires after {@code ttl}.
+ */
 @Service
 public class TherapistDetailsService implements UserDetailsService {
 
     private final TherapistsRepository therapistsRepository;
+    private final Cache<String, TherapistDetails> detailsByPhone;
+    private final Cache<Long, String> phonesById;
 
     @Autowired
-    public TherapistDetailsService(TherapistsRepository therapistsRepository) {
+    public TherapistDetailsService(TherapistsRepository therapistsRepository, MeterRegistry meterRegistry,
+                                   @Value("${clients.therapist-cache.maximum-size:10000}") long maximumSize,
+                                   @Value("${clients.therapist-cache.ttl:60s}") Duration ttl) {
         this.therapistsRepository = therapistsRepository;
+        this.detailsByPhone = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        this.phonesById = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, detailsByPhone, "therapistDetails");
     }
 
 
     @Override
     public UserDetails loadUserByUsername(String s) throws UsernameNotFoundException {
-        Optional<Therapist> therapist = therapistsRepository.findTherapistByPhone(s);
+        TherapistDetails details = detailsByPhone.get(s, this::findByPhone);
 
-        if (therapist.isEmpty())
+        if (details == null)
             throw new UsernameNotFoundException(String.format("User with phone - %s not found", s));
 
+        return details;
+    }
+
+    private TherapistDetails findByPhone(String phone) {
+        Optional<Therapist> therapist = therapistsRepository.findTherapistByPhone(phone);
+        if (therapist.isEmpty())
+            return null;
+        phonesById.put(therapist.get().getId(), phone);
         return new TherapistDetails(therapist.get());
     }
+
+    /**
+     * Drops the therapist cached under this id, whatever phone it was cached under.
+     */
+    public void evict(Long therapistId) {
+        String phone = phonesById.asMap().remove(therapistId);
+        if (phone != null)
+            detailsByPhone.invalidate(phone);
+    }
+
+    public void evict(String phone) {
+        detailsByPhone.invalidate(phone);
+    }
 }
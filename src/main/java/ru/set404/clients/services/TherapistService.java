@@ -1,41 +1,92 @@
 package ru.set404.clients.services;
 
 import jakarta.security.auth.message.AuthException;
+import lombok.extern.slf4j.Slf4j;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.stereotype.Component;
 import ru.set404.clients.dto.AppointmentDTO;
 import ru.set404.clients.dto.AppointmentsForSiteDTO;
 import ru.set404.clients.dto.AvailabilitiesDTO;
+import ru.set404.clients.dto.DayAvailabilityDTO;
 import ru.set404.clients.dto.ServiceDTO;
+import ru.set404.clients.dto.TherapistAvailabilityDTO;
 import ru.set404.clients.exceptions.*;
 import ru.set404.clients.models.*;
 import ru.set404.clients.repositories.TherapistsRepository;
+import ru.set404.clients.security.TokenVersions;
+import ru.set404.clients.util.StripedLock;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
+@Slf4j
 @Component
 public class TherapistService {
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 200;
+    public static final int MAX_BATCH_THERAPISTS = 100;
+    public static final int MAX_BATCH_DAYS = 14;
+    private static final int DEFAULT_EARLIEST_SLOTS = 10;
+    private static final int MAX_EARLIEST_SLOTS = 100;
+
     private final TherapistsRepository repository;
     private final ModelMapper modelMapper;
+    private final StripedLock therapistLocks;
+    private final CalendarEngine calendarEngine;
+    private final AvailabilitySnapshots snapshots;
+    private final TherapistVersions versions;
+    private final TokenVersions tokenVersions;
+    private final TherapistDetailsService therapistDetails;
 
     @Autowired
-    public TherapistService(TherapistsRepository repository, ModelMapper modelMapper) {
+    public TherapistService(TherapistsRepository repository, ModelMapper modelMapper, CalendarEngine calendarEngine,
+                            AvailabilitySnapshots snapshots, TherapistVersions versions, TokenVersions tokenVersions,
+                            TherapistDetailsService therapistDetails,
+                            @Value("${booking.lock-stripes:64}") int lockStripes) {
         this.repository = repository;
         this.modelMapper = modelMapper;
+        this.calendarEngine = calendarEngine;
+        this.snapshots = snapshots;
+        this.versions = versions;
+        this.tokenVersions = tokenVersions;
+        this.therapistDetails = therapistDetails;
+        this.therapistLocks = new StripedLock(lockStripes);
     }
 
     public Appointment addAppointment(AppointmentDTO appointmentDTO) {
         Appointment appointment = appointmentDTO.toAppointment();
-        if (repository.isTimeAvailable(appointment) && repository.findAvailableTimes(appointment.getTherapistId(),
-                appointmentDTO.getStartTime().toLocalDate()).contains(appointmentDTO.getStartTime().toLocalTime()))
-            repository.createAppointment(appointment);
-        else {
-            throw new TimeNotAvailableException();
-        }
-        return appointment;
+        return withTherapistLock(appointment.getTherapistId(), () -> {
+            try {
+                if (!repository.createAppointment(appointment))
+                    throw new TimeNotAvailableException();
+                // the booking may have renamed the client, which shows in other therapists' appointments too
+                for (Long therapistId : repository.findTherapistIdsByClient(appointment.getClient().getId()))
+                    versions.bump(therapistId);
+            } catch (DuplicateKeyException e) {
+                throw new TimeNotAvailableException();
+            } finally {
+                // a refused booking may mean the cached day is behind the database as well
+                refreshCalendar(appointment.getTherapistId(), appointment.getStartTime().toLocalDate());
+            }
+            return appointment;
+        });
     }
 
     public List<Appointment> findAllAppointments(Long therapistId) {
@@ -44,6 +95,20 @@ public class TherapistService {
                 .orElseThrow(() -> new AppointmentNotFoundException(therapistId));
     }
 
+    /**
+     * Page of appointments in [from, to] that follows the (afterStart, afterId) cursor of the previous page.
+     * One row more than the page size is read to know whether there is a next page.
+     */
+    public Slice<Appointment> findAppointments(Long therapistId, LocalDate from, LocalDate to,
+                                               LocalDateTime afterStart, Long afterId, Integer size) {
+        int pageSize = pageSize(size);
+        List<Appointment> appointments = repository.findAppointmentsForTherapist(therapistId, startOf(from), endOf(to),
+                afterStart, afterId, pageSize + 1);
+        if (appointments.isEmpty() && afterStart == null)
+            throw new AppointmentNotFoundException(therapistId);
+        return toSlice(appointments, pageSize);
+    }
+
     public Appointment findAppointmentById(Long therapistId, Long appointmentId) {
         return repository
                 .findAppointmentForTherapistById(therapistId, appointmentId)
@@ -51,7 +116,7 @@ public class TherapistService {
     }
 
     public List<LocalTime> findAvailableTimes(Long therapistId, LocalDate date) {
-        List<LocalTime> availableTimes = repository.findAvailableTimes(therapistId, date);
+        List<LocalTime> availableTimes = calendarEngine.findAvailableTimes(therapistId, date);
         if (availableTimes.size() > 0)
             return availableTimes;
         else
@@ -59,15 +124,133 @@ public class TherapistService {
     }
 
     public List<LocalDate> findAvailableDates(Long therapistId, LocalDate date) {
-        List<LocalDate> availableDates = repository.findAvailableDates(therapistId, date);
+        List<LocalDate> availableDates = calendarEngine.findAvailableDates(therapistId, date);
         if (availableDates.size() > 0)
             return availableDates;
         else
             throw new TimeNotAvailableException();
     }
 
+    /**
+     * Free times of every listed therapist for the days [from, to], in the order of the ids.
+     * Therapists without free times get an empty list of days.
+     */
+    public List<TherapistAvailabilityDTO> findAvailableTimes(List<Long> therapistIds, LocalDate from, LocalDate to) {
+        Map<Long, SortedMap<LocalDate, List<LocalTime>>> availableTimes =
+                calendarEngine.findAvailableTimes(therapistIds, from, to);
+        List<TherapistAvailabilityDTO> therapists = new ArrayList<>();
+        for (Long therapistId : new LinkedHashSet<>(therapistIds)) {
+            List<DayAvailabilityDTO> days = new ArrayList<>();
+            availableTimes.get(therapistId).forEach((date, times) -> {
+                DayAvailabilityDTO day = new DayAvailabilityDTO();
+                day.setDate(date);
+                day.setTimes(times);
+                days.add(day);
+            });
+            therapists.add(new TherapistAvailabilityDTO(therapistId, days));
+        }
+        return therapists;
+    }
+
+    /**
+     * @param therapistIds therapists to search, every therapist with free days when null or empty
+     */
+    public List<FreeSlot> findEarliestSlots(List<Long> therapistIds, Integer limit) {
+        if (therapistIds == null || therapistIds.isEmpty())
+            therapistIds = repository.findTherapistIdsWithAvailability(LocalDate.now());
+        int count = limit == null ? DEFAULT_EARLIEST_SLOTS : Math.max(1, Math.min(limit, MAX_EARLIEST_SLOTS));
+        List<FreeSlot> slots = calendarEngine.findEarliestSlots(therapistIds, count);
+        if (slots.isEmpty())
+            throw new TimeNotAvailableException();
+        return slots;
+    }
+
+    public List<DayAvailabilityDTO> findAvailableMonth(Long therapistId, LocalDate date, boolean asTimes) {
+        List<DayAvailabilityDTO> month = toMonth(calendarEngine.findAvailableGrids(therapistId, date), asTimes);
+        if (month.isEmpty())
+            throw new TimeNotAvailableException();
+        return month;
+    }
+
+    /**
+     * The mask encoded month as a file rendered ahead of time, written first if it is missing or outdated.
+     *
+     * @return empty when snapshots are disabled
+     */
+    public Optional<AvailabilitySnapshots.Snapshot> findAvailableMonthSnapshot(Long therapistId, LocalDate date) {
+        if (!snapshots.isEnabled())
+            return Optional.empty();
+        YearMonth month = YearMonth.from(date);
+        Optional<AvailabilitySnapshots.Snapshot> snapshot = snapshots.find(therapistId, month)
+                .or(() -> withTherapistLock(therapistId, () -> writeSnapshot(therapistId, month)));
+        if (snapshot.isEmpty())
+            throw new TimeNotAvailableException();
+        return snapshot;
+    }
+
+    private Optional<AvailabilitySnapshots.Snapshot> writeSnapshot(Long therapistId, YearMonth month) {
+        List<SlotGrid> grids = calendarEngine.findAvailableGrids(therapistId, month.atDay(1));
+        // the month changes when today's first free slot begins or the day is over
+        LocalDateTime validUntil = LocalDate.now().plusDays(1).atStartOfDay();
+        for (SlotGrid grid : grids) {
+            // today's free slots may all have begun already
+            if (grid.getDate().isEqual(LocalDate.now()) && !grid.getAvailableTimes().isEmpty()) {
+                LocalDateTime firstSlot = grid.getDate().atTime(grid.getAvailableTimes().get(0));
+                if (firstSlot.isBefore(validUntil))
+                    validUntil = firstSlot;
+            }
+        }
+        return snapshots.write(therapistId, month, toMonth(grids, false), validUntil);
+    }
+
+    private static List<DayAvailabilityDTO> toMonth(List<SlotGrid> grids, boolean asTimes) {
+        List<DayAvailabilityDTO> month = new ArrayList<>();
+        for (SlotGrid grid : grids) {
+            DayAvailabilityDTO day = new DayAvailabilityDTO();
+            day.setDate(grid.getDate());
+            if (asTimes) {
+                day.setTimes(grid.getAvailableTimes());
+            } else {
+                BitSet available = grid.getAvailableSlots();
+                StringBuilder slots = new StringBuilder(grid.getSlotCount());
+                for (int slot = 0; slot < grid.getSlotCount(); slot++)
+                    slots.append(available.get(slot) ? '1' : '0');
+                day.setStart(grid.getStartTime());
+                day.setStep(grid.getDuration());
+                day.setSlots(slots.toString());
+            }
+            month.add(day);
+        }
+        return month;
+    }
+
+    /**
+     * Called with the therapist lock held after a write of one day. The version is bumped once the
+     * calendar is reloaded, so a reader holding the new version never gets the old answer.
+     */
+    private void refreshCalendar(Long therapistId, LocalDate date) {
+        calendarEngine.refresh(therapistId, date);
+        versions.bump(therapistId);
+        if (!snapshots.isEnabled() || date.isBefore(LocalDate.now()))
+            return;
+        try {
+            writeSnapshot(therapistId, YearMonth.from(date));
+        } catch (RuntimeException e) {
+            // the write itself is committed, readers render the month again
+            log.warn("Cannot refresh availability snapshot of therapist {}", therapistId, e);
+            snapshots.delete(therapistId);
+        }
+    }
+
+    private void evictCalendar(Long therapistId) {
+        calendarEngine.evict(therapistId);
+        versions.bump(therapistId);
+        snapshots.delete(therapistId);
+    }
+
     public void deleteAppointment(Long therapistId, Long appointmentId) {
-        repository.deleteAppointment(therapistId, appointmentId);
+        withTherapistLock(therapistId, () -> repository.deleteAppointment(therapistId, appointmentId)
+                .ifPresent(startTime -> refreshCalendar(therapistId, startTime.toLocalDate())));
     }
 
     public Therapist findTherapistById(Long therapistId) {
@@ -84,38 +267,102 @@ public class TherapistService {
 
     public void updateTherapist(Therapist therapist) {
         repository.updateTherapist(therapist);
+        tokenVersions.invalidate(therapist.getId());
+        therapistDetails.evict(therapist.getId());
+        therapistDetails.evict(therapist.getPhone());
+        versions.bump(therapist.getId());
     }
 
     public void addAvailableTime(Long therapistId, Availability availability) {
-        repository.addOrUpdateAvailableTime(therapistId, availability);
+        withTherapistLock(therapistId, () -> {
+            repository.addOrUpdateAvailableTime(therapistId, availability);
+            refreshCalendar(therapistId, availability.getDate());
+        });
     }
 
     public void addAvailableTime(Long therapistId, AvailabilitiesDTO availabilitiesDTO) {
-        repository.addOrUpdateAvailableTime(therapistId, availabilitiesDTO);
+        withTherapistLock(therapistId, () -> {
+            repository.addOrUpdateAvailableTime(therapistId, availabilitiesDTO);
+            evictCalendar(therapistId);
+        });
     }
 
     public void deleteAvailableTime(Long therapistId, LocalDate date) {
-        repository.deleteAvailableTime(therapistId, date);
+        withTherapistLock(therapistId, () -> {
+            repository.deleteAvailableTime(therapistId, date);
+            refreshCalendar(therapistId, date);
+        });
     }
 
     public void deleteTherapist(Long therapistId) {
-        repository.deleteTherapist(therapistId);
+        withTherapistLock(therapistId, () -> {
+            repository.deleteTherapist(therapistId);
+            tokenVersions.invalidate(therapistId);
+            therapistDetails.evict(therapistId);
+            evictCalendar(therapistId);
+        });
     }
 
     public Service findService(Long therapistId) {
         return repository.findServiceByTherapist(therapistId).orElseThrow(() -> new ServiceNotFoundException(therapistId));
     }
 
-    public List<Client> findClients(Long therapistId) {
-        return repository.findClientsForTherapist(therapistId).orElseThrow(() -> new ClientNotFoundException(therapistId));
+    public Slice<Client> findClients(Long therapistId, LocalDate from, LocalDate to, Long afterId, Integer size) {
+        int pageSize = pageSize(size);
+        List<Client> clients = repository.findClientsForTherapist(therapistId, startOf(from), endOf(to),
+                afterId, pageSize + 1);
+        if (clients.isEmpty() && afterId == null)
+            throw new ClientNotFoundException(therapistId);
+        return toSlice(clients, pageSize);
+    }
+
+    private static int pageSize(Integer size) {
+        return size == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+    }
+
+    private static <T> Slice<T> toSlice(List<T> rows, int pageSize) {
+        boolean hasNext = rows.size() > pageSize;
+        return new SliceImpl<>(hasNext ? rows.subList(0, pageSize) : rows, PageRequest.ofSize(pageSize), hasNext);
+    }
+
+    private static LocalDateTime startOf(LocalDate from) {
+        return from == null ? null : from.atStartOfDay();
+    }
+
+    private static LocalDateTime endOf(LocalDate to) {
+        return to == null ? null : to.plusDays(1).atStartOfDay();
     }
 
     public void addOrUpdateService(Long therapistId, ServiceDTO service) {
         Service updatedService = modelMapper.map(service, Service.class);
-        repository.addOrUpdateService(therapistId, updatedService);
+        withTherapistLock(therapistId, () -> {
+            repository.addOrUpdateService(therapistId, updatedService);
+            evictCalendar(therapistId);
+        });
     }
 
     public List<AppointmentsForSiteDTO> findAllAppointmentsDTO(Long therapistId) {
         return repository.findAppointmentsForTherapistSite(therapistId).orElseThrow(() -> new AppointmentNotFoundException(therapistId));
     }
+
+    /**
+     * Serializes calendar writes of one therapist inside this node, so concurrent bookings of a popular
+     * therapist queue here instead of on database row locks. Writes for other therapists are not blocked.
+     */
+    private <T> T withTherapistLock(Long therapistId, Supplier<T> action) {
+        Lock lock = therapistLocks.get(therapistId);
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void withTherapistLock(Long therapistId, Runnable action) {
+        withTherapistLock(therapistId, () -> {
+            action.run();
+            return null;
+        });
+    }
 }
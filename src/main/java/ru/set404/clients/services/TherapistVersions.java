@@ -0,0 +1,103 @@
+package ru.set404.clients.services;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+import ru.set404.clients.repositories.TherapistsRepository;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Change version of each therapist's calendar, kept in THERAPISTS.CALENDAR_VERSION and raised by
+ * {@link TherapistService} after every write, so a read can be answered with 304 from the version alone
+ * and every node derives the same tag.
+ * <p>
+ * Versions are read through a local cache. A write on this node puts its new version in the cache, a write
+ * on another node is seen once the entry expires after {@code ttl}. A version that moved without a write
+ * here drops the therapist's calendar from {@link CalendarEngine}, so the new tag never comes with an old answer.
+ */
+@Slf4j
+@Component
+public class TherapistVersions {
+    private final TherapistsRepository repository;
+    private final CalendarEngine calendarEngine;
+    private final LoadingCache<Long, Long> versions;
+    private final ConcurrentMap<Long, Long> seen = new ConcurrentHashMap<>();
+
+    public TherapistVersions(TherapistsRepository repository, CalendarEngine calendarEngine, MeterRegistry meterRegistry,
+                             @Value("${clients.calendar-versions.maximum-size:100000}") long maximumSize,
+                             @Value("${clients.calendar-versions.ttl:5s}") Duration ttl) {
+        this.repository = repository;
+        this.calendarEngine = calendarEngine;
+        this.versions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build(this::loadVersion);
+        CaffeineCacheMetrics.monitor(meterRegistry, versions, "calendarVersions");
+    }
+
+    /**
+     * Raises the version after a committed write. A failure is only logged, the write itself is done.
+     */
+    public void bump(Long therapistId) {
+        try {
+            repository.bumpCalendarVersion(therapistId).ifPresentOrElse(version -> {
+                seen.put(therapistId, version);
+                versions.put(therapistId, version);
+            }, () -> forget(therapistId));
+        } catch (DataAccessException e) {
+            log.warn("Cannot raise calendar version of therapist {}", therapistId, e);
+            versions.invalidate(therapistId);
+        }
+    }
+
+    public long version(Long therapistId) {
+        return versions.get(therapistId);
+    }
+
+    /**
+     * Strong ETag of a read that only depends on the therapist's data.
+     */
+    public String etag(Long therapistId) {
+        return "\"" + therapistId + "-" + version(therapistId) + "\"";
+    }
+
+    /**
+     * Strong ETag of an availability read of the days [from, to]. Free times of today disappear as their
+     * start passes and the listed days shift at midnight, so the tag also changes with the date and,
+     * when today is in the range, with every minute.
+     */
+    public String etag(Long therapistId, LocalDate from, LocalDate to) {
+        LocalDate today = LocalDate.now();
+        String tag = therapistId + "-" + version(therapistId) + "-" + from.toEpochDay() + "-" + to.toEpochDay()
+                + "-" + today.toEpochDay();
+        if (!today.isBefore(from) && !today.isAfter(to))
+            tag += "-" + LocalTime.now().truncatedTo(ChronoUnit.MINUTES).toSecondOfDay() / 60;
+        return "\"" + tag + "\"";
+    }
+
+    private long loadVersion(Long therapistId) {
+        long version = repository.findCalendarVersion(therapistId).orElse(0L);
+        Long previous = seen.put(therapistId, version);
+        if (previous != null && previous != version)
+            // written by another node, the cached calendar may predate it
+            calendarEngine.evict(therapistId);
+        return version;
+    }
+
+    private void forget(Long therapistId) {
+        seen.remove(therapistId);
+        versions.invalidate(therapistId);
+    }
+}
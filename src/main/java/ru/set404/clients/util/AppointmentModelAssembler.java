@@ -19,8 +19,8 @@ public class AppointmentModelAssembler implements RepresentationModelAssembler<A
                         .getAppointmentById(entity.getAppointmentId()))
                         .withSelfRel(),
                 linkTo(methodOn(TherapistController.class)
-                        .allAppointments())
-                        .withRel("appointments"));
+                        .allAppointments(null, null, null, null, null, null))
+                        .withRel("appointments").expand());
     }
 
     @Override
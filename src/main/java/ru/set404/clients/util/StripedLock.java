@@ -0,0 +1,27 @@
+package ru.set404.clients.util;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by hashing the key, so writers for the same key are serialized
+ * while writers for different keys almost always get different locks.
+ */
+public class StripedLock {
+
+    private final Lock[] locks;
+    private final int mask;
+
+    public StripedLock(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new Lock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    public Lock get(long key) {
+        int hash = Long.hashCode(key);
+        return locks[(hash ^ (hash >>> 16)) & mask];
+    }
+}
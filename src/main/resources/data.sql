@@ -13,7 +13,9 @@ create table THERAPISTS
     NAME         CHARACTER VARYING(50)  not null,
     PHONE        CHARACTER VARYING(20)  not null,
     PASSWORD     CHARACTER VARYING(255) not null,
-    ROLE         CHARACTER VARYING(255) not null
+    ROLE         CHARACTER VARYING(255) not null,
+    TOKEN_VERSION INTEGER default 0 not null,
+    CALENDAR_VERSION BIGINT default 0 not null
 );
 
 create table AVAILABILITY
@@ -25,7 +27,8 @@ create table AVAILABILITY
     START_TIME      TIME    not null,
     END_TIME        TIME    not null,
     AVAILABLE_DATE  DATE    not null,
-    ISFULL          BOOLEAN default FALSE
+    ISFULL          BOOLEAN default FALSE,
+    SLOT_MASK       BINARY VARYING(180)
 );
 
 create table SERVICES
@@ -53,3 +56,22 @@ create table APPOINTMENTS
     START_TIME     TIMESTAMP not null
 );
 
+create table REFRESH_TOKENS
+(
+    LOGIN      CHARACTER VARYING(20) not null
+        primary key,
+    TOKEN_HASH CHARACTER VARYING(64) not null,
+    EXPIRES_AT TIMESTAMP             not null
+);
+
+-- one bit per slot of the day, set when the slot is booked; NULL until computed
+alter table AVAILABILITY add column if not exists SLOT_MASK BINARY VARYING(180);
+-- raised on password, phone or role change so that access tokens issued before are refused
+alter table THERAPISTS add column if not exists TOKEN_VERSION INTEGER default 0 not null;
+-- raised on every change of appointments or availability, so all nodes derive the same ETags
+alter table THERAPISTS add column if not exists CALENDAR_VERSION BIGINT default 0 not null;
+create index if not exists AVAILABILITY_THERAPIST_DATE_INDEX on AVAILABILITY (THERAPIST_ID, AVAILABLE_DATE);
+create index if not exists THERAPISTS_PHONE_INDEX on THERAPISTS (PHONE);
+create index if not exists SERVICES_THERAPIST_INDEX on SERVICES (THERAPIST_ID);
+
+create index if not exists REFRESH_TOKENS_EXPIRES_INDEX on REFRESH_TOKENS (EXPIRES_AT);
@@ -0,0 +1,5 @@
+-- run without continue-on-error, so startup fails instead of dropping the old index without the unique one
+-- bookings saved twice for the same therapist and time before the pair became unique; the first one is kept
+delete from APPOINTMENTS A where exists(select 1 from APPOINTMENTS B where B.THERAPIST_ID = A.THERAPIST_ID and B.START_TIME = A.START_TIME and B.APPOINTMENT_ID < A.APPOINTMENT_ID);
+create unique index if not exists APPOINTMENTS_THERAPIST_START_UINDEX on APPOINTMENTS (THERAPIST_ID, START_TIME);
+drop index if exists APPOINTMENTS_THERAPIST_START_INDEX;
@@ -0,0 +1,9 @@
+-- run without continue-on-error: the delete cascades to appointments that the update failed to move,
+-- and the old index must stay until the unique one exists
+-- merge clients that were saved several times under the same phone before the phone became unique
+update APPOINTMENTS A
+set CLIENT_ID = (select min(D.CLIENT_ID) from CLIENTS C join CLIENTS D on D.PHONE = C.PHONE where C.CLIENT_ID = A.CLIENT_ID)
+where exists(select 1 from CLIENTS C join CLIENTS D on D.PHONE = C.PHONE where C.CLIENT_ID = A.CLIENT_ID and D.CLIENT_ID < C.CLIENT_ID);
+delete from CLIENTS C where exists(select 1 from CLIENTS D where D.PHONE = C.PHONE and D.CLIENT_ID < C.CLIENT_ID);
+create unique index if not exists CLIENTS_PHONE_UINDEX on CLIENTS (PHONE);
+drop index if exists CLIENTS_PHONE_INDEX;
@@ -2,16 +2,26 @@ package ru.set404.clients.controllers;
 
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.json.JSONObject;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
@@ -22,6 +32,12 @@ import org.springframework.test.web.servlet.MockMvc;
 import ru.set404.clients.ClientsApplication;
 import ru.set404.clients.dto.TherapistDTO;
 import ru.set404.clients.dto.securitydto.JwtRequest;
+import ru.set404.clients.dto.securitydto.RefreshJwtRequest;
+import ru.set404.clients.models.Therapist;
+import ru.set404.clients.services.TherapistService;
+
+import java.util.Date;
+import java.util.List;
 
 
 @RunWith(SpringRunner.class)
@@ -36,6 +52,12 @@ public class AuthControllerTest {
     private MockMvc mvc;
     @Autowired
     private ObjectMapper objectMapper;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private TherapistService service;
+    @Value("${jwt.secret.access}")
+    private String accessSecret;
 
     @Test
     public void whenLoginValidCredentials() throws Exception {
@@ -76,6 +98,105 @@ public class AuthControllerTest {
                 .andExpect(status().is(403)).andExpect(jsonPath("$.message", is("Authorization error. Invalid credentials")));
     }
 
+    @Test
+    public void loginCachedUntilPasswordChange() throws Exception {
+        TherapistDTO therapist = createTestTherapist();
+        JwtRequest request = new JwtRequest();
+        request.setLogin(therapist.getPhone());
+        request.setPassword(therapist.getPassword());
+
+        double misses = therapistCacheGets("miss");
+        for (int i = 0; i < 2; i++)
+            mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(request)))
+                    .andExpect(status().is(200));
+        assertEquals(misses + 1, therapistCacheGets("miss"), 0);
+
+        Therapist saved = service.findTherapistByPhone(therapist.getPhone());
+        saved.setPassword("$2a$10$invalidatedinvalidatedinvalidatedinvalidatedinvalidat");
+        service.updateTherapist(saved);
+        mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().is(403));
+    }
+
+    @Test
+    public void refreshTokenRotatesOnce() throws Exception {
+        TherapistDTO therapist = createTestTherapist();
+        JwtRequest request = new JwtRequest();
+        request.setLogin(therapist.getPhone());
+        request.setPassword(therapist.getPassword());
+        String login = mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().is(200))
+                .andReturn().getResponse().getContentAsString();
+        RefreshJwtRequest refresh = new RefreshJwtRequest();
+        refresh.setRefreshToken(new JSONObject(login).getString("refreshToken"));
+
+        String rotated = mvc.perform(post("/auth/refresh").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(refresh)))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.accessToken").exists())
+                .andReturn().getResponse().getContentAsString();
+        mvc.perform(post("/auth/refresh").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(refresh)))
+                .andExpect(status().is(403));
+
+        refresh.setRefreshToken(new JSONObject(rotated).getString("refreshToken"));
+        mvc.perform(post("/auth/token").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(refresh)))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.accessToken").exists());
+    }
+
+    @Test
+    public void loginAttemptsLimitedPerPhone() throws Exception {
+        JwtRequest request = new JwtRequest();
+        request.setLogin("88005550000");
+        request.setPassword("guess");
+        for (int i = 0; i < 5; i++)
+            mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(request)))
+                    .andExpect(status().is(403))
+                    .andExpect(jsonPath("$.message", is("Authorization error. Invalid credentials")));
+        mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().is(429))
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    public void accessTokenWithoutVersionRejected() throws Exception {
+        TherapistDTO therapist = createTestTherapist();
+        Therapist saved = service.findTherapistByPhone(therapist.getPhone());
+        JwtRequest request = new JwtRequest();
+        request.setLogin(therapist.getPhone());
+        request.setPassword(therapist.getPassword());
+        String login = mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().is(200))
+                .andReturn().getResponse().getContentAsString();
+        mvc.perform(get("/therapists")
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + new JSONObject(login).getString("accessToken")))
+                .andExpect(status().is(200));
+
+        String unversioned = Jwts.builder()
+                .setSubject(saved.getPhone())
+                .setExpiration(new Date(System.currentTimeMillis() + 60_000))
+                .signWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(accessSecret)))
+                .claim("roles", List.of(saved.getRole()))
+                .claim("name", saved.getName())
+                .claim("id", saved.getId())
+                .compact();
+        mvc.perform(get("/therapists").header(HttpHeaders.AUTHORIZATION, "Bearer " + unversioned))
+                .andExpect(status().is(403));
+    }
+
+    private double therapistCacheGets(String result) {
+        return meterRegistry.get("cache.gets").tag("cache", "therapistDetails").tag("result", result)
+                .functionCounter().count();
+    }
+
     private TherapistDTO createTestTherapist() throws Exception {
         TherapistDTO therapistDTO = new TherapistDTO("Bob", "88005553535", "qwerty");
         mvc.perform(post("/auth/registration").contentType(MediaType.APPLICATION_JSON)
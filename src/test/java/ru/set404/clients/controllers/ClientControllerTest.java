@@ -2,33 +2,51 @@ package ru.set404.clients.controllers;
 
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.jdbc.Sql;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
 import ru.set404.clients.ClientsApplication;
+import ru.set404.clients.config.AvailabilityWarmUp;
 import ru.set404.clients.dto.AppointmentDTO;
 import ru.set404.clients.dto.ClientDTO;
 import ru.set404.clients.dto.ServiceDTO;
+import ru.set404.clients.exceptions.TimeNotAvailableException;
 import ru.set404.clients.models.Availability;
 import ru.set404.clients.models.Role;
 import ru.set404.clients.models.Therapist;
 import ru.set404.clients.services.RegistrationService;
 import ru.set404.clients.services.TherapistService;
 
+import java.io.ByteArrayInputStream;
+import java.sql.Timestamp;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -50,6 +68,12 @@ public class ClientControllerTest {
     private RegistrationService registrationService;
     @Autowired
     private ObjectMapper objectMapper;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private AvailabilityWarmUp warmUp;
 
     @Test
     public void getAvailableTimes() throws Exception {
@@ -60,6 +84,55 @@ public class ClientControllerTest {
                 .andExpect(jsonPath("$.length()", is(23)));
     }
 
+    @Test
+    public void getAvailableTimesNotModifiedUntilBooking() throws Exception {
+        LocalDate date = LocalDate.now().plusDays(1);
+        String etag = mvc.perform(get("/clients/availableTimes").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString()))
+                .andExpect(status().is(200))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mvc.perform(get("/clients/availableTimes").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString())
+                        .header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().is(304));
+
+        service.addAppointment(appointment("Client", "8800555", date.atTime(10, 0)));
+
+        mvc.perform(get("/clients/availableTimes").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString())
+                        .header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.length()", is(22)));
+    }
+
+    @Test
+    public void getAvailableTimesModifiedByWriteOfAnotherNode() throws Exception {
+        LocalDate date = LocalDate.now().plusDays(1);
+        String etag = mvc.perform(get("/clients/availableTimes").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString()))
+                .andExpect(status().is(200))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        // what another node's booking leaves in the database
+        jdbcTemplate.update("UPDATE AVAILABILITY SET SLOT_MASK = NULL WHERE THERAPIST_ID = 1");
+        jdbcTemplate.update("INSERT INTO CLIENTS (NAME, PHONE) VALUES ('Client', '8800555')");
+        jdbcTemplate.update("INSERT INTO APPOINTMENTS (CLIENT_ID, THERAPIST_ID, SERVICE_ID, START_TIME) " +
+                "SELECT CLIENT_ID, 1, 1, ? FROM CLIENTS", Timestamp.valueOf(date.atTime(10, 0)));
+        jdbcTemplate.update("UPDATE THERAPISTS SET CALENDAR_VERSION = CALENDAR_VERSION + 1 WHERE THERAPIST_ID = 1");
+        Thread.sleep(1100);
+
+        mvc.perform(get("/clients/availableTimes").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString())
+                        .header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.length()", is(22)));
+    }
+
     @Test
     public void getAvailableTimesForUnavailableDate() throws Exception {
         mvc.perform(get("/clients/availableTimes").contentType(MediaType.APPLICATION_JSON)
@@ -85,6 +158,123 @@ public class ClientControllerTest {
                 .andExpect(jsonPath("$.length()", is(1)));
     }
 
+    @Test
+    public void getAvailableMonth() throws Exception {
+        LocalDate date = LocalDate.now().plusDays(1);
+        service.addAppointment(appointment("Client", "8800555", date.atTime(1, 0)));
+
+        mvc.perform(get("/clients/availableMonth").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString()))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.length()", is(1)))
+                .andExpect(jsonPath("$[0].date", is(date.toString())))
+                .andExpect(jsonPath("$[0].start", is("00:00:00")))
+                .andExpect(jsonPath("$[0].step", is(60)))
+                .andExpect(jsonPath("$[0].slots", is("10" + "1".repeat(21))));
+
+        mvc.perform(get("/clients/availableMonth").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString())
+                        .param("encoding", "times"))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$[0].times.length()", is(22)))
+                .andExpect(jsonPath("$[0].slots").doesNotExist());
+    }
+
+    @Test
+    public void getAvailableMonthSnapshotGzippedAndRewrittenOnBooking() throws Exception {
+        LocalDate date = LocalDate.now().plusDays(1);
+        byte[] gzipped = mvc.perform(get("/clients/availableMonth").contentType(MediaType.APPLICATION_JSON)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                        .param("therapistId", "1")
+                        .param("date", date.toString()))
+                .andExpect(status().is(200))
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn().getResponse().getContentAsByteArray();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            assertEquals("1".repeat(23), objectMapper.readTree(in).get(0).get("slots").asText());
+        }
+
+        service.addAppointment(appointment("Client", "8800555", date.atTime(2, 0)));
+
+        mvc.perform(get("/clients/availableMonth").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", date.toString()))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$[0].slots", is("110" + "1".repeat(20))));
+    }
+
+    @Test
+    public void getAvailableMonthForUnavailableDate() throws Exception {
+        mvc.perform(get("/clients/availableMonth").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistId", "1")
+                        .param("date", LocalDate.now().plusDays(40).toString()))
+                .andExpect(status().is(406));
+    }
+
+    @Test
+    public void getAvailableTimesBatch() throws Exception {
+        Long secondId = registrationService.saveTherapist(new Therapist("Alice", "88005553536", "qwerty", Role.USER));
+        service.addOrUpdateService(secondId, new ServiceDTO("Name", "Description", 60, 5000));
+        Availability availability = new Availability();
+        availability.setDate(LocalDate.now().plusDays(2));
+        availability.setStartTime(LocalTime.of(10, 0));
+        availability.setEndTime(LocalTime.of(12, 0));
+        service.addAvailableTime(secondId, availability);
+        service.findAvailableTimes(1L, LocalDate.now().plusDays(1));
+
+        mvc.perform(get("/clients/availableTimes/batch").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistIds", "1", secondId.toString(), "100500")
+                        .param("from", LocalDate.now().toString())
+                        .param("to", LocalDate.now().plusDays(2).toString()))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.length()", is(3)))
+                .andExpect(jsonPath("$[0].therapistId", is(1)))
+                .andExpect(jsonPath("$[0].days[0].date", is(LocalDate.now().plusDays(1).toString())))
+                .andExpect(jsonPath("$[0].days[0].times.length()", is(23)))
+                .andExpect(jsonPath("$[1].days[0].date", is(LocalDate.now().plusDays(2).toString())))
+                .andExpect(jsonPath("$[1].days[0].times.length()", is(2)))
+                .andExpect(jsonPath("$[2].days.length()", is(0)));
+    }
+
+    @Test
+    public void getAvailableTimesBatchForTooManyDays() throws Exception {
+        mvc.perform(get("/clients/availableTimes/batch").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistIds", "1")
+                        .param("from", LocalDate.now().toString())
+                        .param("to", LocalDate.now().plusDays(30).toString()))
+                .andExpect(status().is(400));
+    }
+
+    @Test
+    public void getEarliestSlots() throws Exception {
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        Long secondId = registrationService.saveTherapist(new Therapist("Alice", "88005553536", "qwerty", Role.USER));
+        service.addOrUpdateService(secondId, new ServiceDTO("Name", "Description", 60, 5000));
+        Availability availability = new Availability();
+        availability.setDate(tomorrow);
+        availability.setStartTime(LocalTime.of(0, 30));
+        availability.setEndTime(LocalTime.of(2, 30));
+        service.addAvailableTime(secondId, availability);
+
+        mvc.perform(get("/clients/earliestSlots").contentType(MediaType.APPLICATION_JSON)
+                        .param("limit", "4"))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.length()", is(4)))
+                .andExpect(jsonPath("$[0].therapistId", is(1)))
+                .andExpect(jsonPath("$[0].startTime", is(tomorrow + " 00:00")))
+                .andExpect(jsonPath("$[1].therapistId", is(secondId.intValue())))
+                .andExpect(jsonPath("$[1].startTime", is(tomorrow + " 00:30")))
+                .andExpect(jsonPath("$[2].startTime", is(tomorrow + " 01:00")))
+                .andExpect(jsonPath("$[3].startTime", is(tomorrow + " 01:30")));
+
+        mvc.perform(get("/clients/earliestSlots").contentType(MediaType.APPLICATION_JSON)
+                        .param("therapistIds", secondId.toString()))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.length()", is(2)));
+    }
+
     @Test
     public void getAvailableDatesForUnavailableDate() throws Exception {
         mvc.perform(get("/clients/availableDates").contentType(MediaType.APPLICATION_JSON)
@@ -101,25 +291,163 @@ public class ClientControllerTest {
                 .andExpect(status().is(406));
     }
 
+    @Test
+    public void getAvailableDatesWithoutFullyBookedDate() {
+        LocalDate date = LocalDate.now().plusDays(2);
+        Availability availability = new Availability();
+        availability.setDate(date);
+        availability.setStartTime(LocalTime.of(10, 0));
+        availability.setEndTime(LocalTime.of(12, 0));
+        service.addAvailableTime(1L, availability);
+        assertTrue(service.findAvailableDates(1L, date).contains(date));
+
+        for (int hour = 10; hour < 12; hour++) {
+            service.addAppointment(appointment("Client", "8800555", date.atTime(hour, 0)));
+        }
+        assertFalse(service.findAvailableDates(1L, date).contains(date));
+    }
+
+    @Test
+    public void availableTimesAreServedFromCalendar() {
+        LocalDate date = LocalDate.now().plusDays(1);
+        assertEquals(23, service.findAvailableTimes(1L, date).size());
+
+        jdbcTemplate.update("DELETE FROM AVAILABILITY WHERE THERAPIST_ID = 1");
+        assertEquals(23, service.findAvailableTimes(1L, date).size());
+
+        service.deleteAvailableTime(1L, date);
+        assertThrows(TimeNotAvailableException.class, () -> service.findAvailableTimes(1L, date));
+    }
+
+    @Test
+    public void availableTimesAreCachedUntilBooking() {
+        LocalDate date = LocalDate.now().plusDays(1);
+        double hits = cacheGets("availableTimes", "hit");
+        service.findAvailableTimes(1L, date);
+        service.findAvailableTimes(1L, date);
+        assertEquals(hits + 1, cacheGets("availableTimes", "hit"), 0);
+
+        service.addAppointment(appointment("Client", "8800555", date.atTime(10, 0)));
+        assertFalse(service.findAvailableTimes(1L, date).contains(LocalTime.of(10, 0)));
+    }
+
+    @Test
+    public void concurrentReadsShareOneLoad() throws Exception {
+        LocalDate date = LocalDate.now().plusDays(1);
+        double loads = cacheLoads("availableTimes");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<LocalTime>>> reads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            reads.add(executor.submit(() -> {
+                start.await();
+                return service.findAvailableTimes(1L, date);
+            }));
+        }
+        start.countDown();
+        for (Future<List<LocalTime>> read : reads)
+            assertEquals(23, read.get().size());
+        executor.shutdown();
+        assertEquals(loads + 1, cacheLoads("availableTimes"), 0);
+    }
+
+    @Test
+    public void warmUpFillsAvailabilityCaches() {
+        warmUp.warmUp();
+        double hits = cacheGets("availableTimes", "hit");
+        double dateHits = cacheGets("availableDates", "hit");
+        assertEquals(23, service.findAvailableTimes(1L, LocalDate.now().plusDays(1)).size());
+        service.findAvailableDates(1L, LocalDate.now().plusDays(1));
+        assertEquals(hits + 1, cacheGets("availableTimes", "hit"), 0);
+        assertEquals(dateHits + 1, cacheGets("availableDates", "hit"), 0);
+    }
+
+    @Test
+    public void readyAfterWarmUp() throws Exception {
+        mvc.perform(get("/actuator/health/readiness"))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.status", is("UP")));
+    }
+
+    private double cacheLoads(String cache) {
+        return meterRegistry.get("cache.load").tag("cache", cache).tag("result", "success").functionCounter().count();
+    }
+
+    private double cacheGets(String cache, String result) {
+        return meterRegistry.get("cache.gets").tag("cache", cache).tag("result", result).functionCounter().count();
+    }
+
     @Test
     public void newAppointment() throws Exception {
-        Long therapistId = 1L;
+        LocalDate date = LocalDate.now().plusDays(1);
+        postAppointment(appointment("Client", "8800555", service.findAvailableTimes(1L, date).get(0).atDate(date)))
+                .andExpect(status().is(201))
+                .andExpect(jsonPath("$.appointmentId", is(1)));
+    }
+
+    @Test
+    public void newAppointmentForBookedTime() throws Exception {
+        AppointmentDTO appointmentDTO = appointment("Client", "8800555", LocalDate.now().plusDays(1).atTime(10, 0));
+        postAppointment(appointmentDTO)
+                .andExpect(status().is(201));
+        postAppointment(appointmentDTO)
+                .andExpect(status().is(406));
+    }
+
+    @Test
+    public void newAppointmentForReturningClient() throws Exception {
+        postAppointment(appointment("Client", "8800555", LocalDate.now().plusDays(1).atTime(10, 0)))
+                .andExpect(status().is(201))
+                .andExpect(jsonPath("$.client.id", is(1)));
+
+        postAppointment(appointment("Client", "8800555", LocalDate.now().plusDays(1).atTime(11, 0)))
+                .andExpect(status().is(201))
+                .andExpect(jsonPath("$.client.id", is(1)));
+    }
+
+    @Test
+    public void concurrentAppointmentsForSameTime() throws Exception {
+        int requests = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            AppointmentDTO appointmentDTO = appointment("Client" + i, "880055" + i, LocalDate.now().plusDays(1).atTime(12, 0));
+            results.add(executor.submit(() -> {
+                start.await();
+                try {
+                    service.addAppointment(appointmentDTO);
+                    return true;
+                } catch (TimeNotAvailableException e) {
+                    return false;
+                }
+            }));
+        }
+        start.countDown();
+        int booked = 0;
+        for (Future<Boolean> result : results)
+            if (result.get(10, TimeUnit.SECONDS)) booked++;
+        executor.shutdown();
+
+        assertEquals(1, booked);
+        assertFalse(service.findAvailableTimes(1L, LocalDate.now().plusDays(1)).contains(LocalTime.of(12, 0)));
+    }
+
+    private AppointmentDTO appointment(String name, String phone, LocalDateTime startTime) {
         ClientDTO clientDTO = new ClientDTO();
-        clientDTO.setName("Client");
-        clientDTO.setPhone("8800555");
+        clientDTO.setName(name);
+        clientDTO.setPhone(phone);
         AppointmentDTO appointmentDTO = new AppointmentDTO();
         appointmentDTO.setClient(clientDTO);
         appointmentDTO.setServiceId(1L);
-        appointmentDTO.setTherapistId(therapistId);
-        appointmentDTO.setStartTime(service.findAvailableTimes(therapistId,
-                LocalDate.now().plusDays(1))
-                .get(0)
-                .atDate(LocalDate.now().plusDays(1)));
-
-        mvc.perform(post("/clients/appointment").contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(appointmentDTO)))
-                .andExpect(status().is(201))
-                .andExpect(jsonPath("$.appointmentId", is(1)));
+        appointmentDTO.setTherapistId(1L);
+        appointmentDTO.setStartTime(startTime);
+        return appointmentDTO;
+    }
+
+    private ResultActions postAppointment(AppointmentDTO appointmentDTO) throws Exception {
+        return mvc.perform(post("/clients/appointment").contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(appointmentDTO)));
     }
 
     @Before
@@ -9,6 +9,7 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
@@ -28,9 +29,11 @@ import ru.set404.clients.dto.securitydto.JwtRequest;
 import ru.set404.clients.services.TherapistService;
 
 
+import java.net.URI;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
@@ -64,6 +67,17 @@ public class TherapistControllerTest {
         ;
     }
 
+    @Test
+    public void getTherapistWithInvalidToken() throws Exception {
+        String token = getAccessToken();
+        mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token.substring(0, token.length() - 2)))
+                .andExpect(status().is(403));
+        mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer not-a-token"))
+                .andExpect(status().is(403));
+    }
+
     @Test
     public void getTherapistWithoutLogin() throws Exception {
         mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON))
@@ -97,13 +111,65 @@ public class TherapistControllerTest {
         assertThrows(AuthException.class, () -> service.findTherapistByPhone("88005553535"));
     }
 
+    @Test
+    public void tokenRevokedByPasswordChange() throws Exception {
+        String token = getAccessToken();
+        mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(200));
+        TherapistDTO therapist = new TherapistDTO("Bob", "88005553535", "changed");
+        mvc.perform(put("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token)
+                        .content(objectMapper.writeValueAsString(therapist)))
+                .andExpect(status().is(201));
+        mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(403));
+
+        JwtRequest request = new JwtRequest();
+        request.setLogin(therapist.getPhone());
+        request.setPassword(therapist.getPassword());
+        String response = mvc.perform(post("/auth/login").contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(request))).andReturn().getResponse().getContentAsString();
+        mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + new JSONObject(response).get("accessToken")))
+                .andExpect(status().is(200));
+    }
+
+    @Test
+    public void tokenKeptByNameChange() throws Exception {
+        String token = getAccessToken();
+        TherapistDTO therapist = new TherapistDTO("Robert", "88005553535", "qwerty");
+        mvc.perform(put("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token)
+                        .content(objectMapper.writeValueAsString(therapist)))
+                .andExpect(status().is(201));
+        mvc.perform(get("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(200));
+    }
+
+    @Test
+    public void tokenRevokedByDelete() throws Exception {
+        String token = getAccessToken();
+        mvc.perform(delete("/therapists").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(204));
+        mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(403));
+    }
+
     @Test
     public void deleteAppointmentById() throws Exception {
         String token = getAccessToken();
         createAppointment();
-        mvc.perform(delete("/therapists/appointments/1").contentType(MediaType.APPLICATION_JSON)
+        assertFalse(service.findAvailableTimes(1L, LocalDate.now().plusDays(1)).contains(LocalTime.of(10, 0)));
+        Long appointmentId = service.findAllAppointments(1L).get(0).getAppointmentId();
+        mvc.perform(delete("/therapists/appointments/" + appointmentId).contentType(MediaType.APPLICATION_JSON)
                         .header("Authorization", "Bearer " + token))
                 .andExpect(status().is(204));
+        assertTrue(service.findAvailableTimes(1L, LocalDate.now().plusDays(1)).contains(LocalTime.of(10, 0)));
     }
 
     @Test
@@ -128,6 +194,87 @@ public class TherapistControllerTest {
                 .andExpect(jsonPath("$._embedded.appointmentList[0].startTime", is(appointmentDTO.getStartTime().format(formatter))));
     }
 
+    @Test
+    public void getAppointmentsNotModifiedUntilCancelled() throws Exception {
+        String token = getAccessToken();
+        createAppointment();
+        String etag = mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(200))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token)
+                        .header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().is(304));
+
+        service.deleteAppointment(1L, service.findAllAppointments(1L).get(0).getAppointmentId());
+        mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token)
+                        .header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().is(404));
+    }
+
+    @Test
+    public void getAppointmentsModifiedWhenClientBooksAnotherTherapist() throws Exception {
+        String token = getAccessToken();
+        AppointmentDTO appointmentDTO = createAppointment();
+        String etag = mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(200))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mvc.perform(post("/auth/registration").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new TherapistDTO("Alice", "88005553536", "qwerty"))))
+                .andExpect(status().is(201));
+        Long otherTherapistId = service.findTherapistByPhone("88005553536").getId();
+        service.addOrUpdateService(otherTherapistId, new ServiceDTO("Name", "Description", 60, 5000));
+        Availability availability = new Availability();
+        availability.setDate(LocalDate.now().plusDays(1));
+        availability.setStartTime(LocalTime.of(0, 0));
+        availability.setEndTime(LocalTime.of(23, 0));
+        service.addAvailableTime(otherTherapistId, availability);
+        appointmentDTO.getClient().setName("John Doe");
+        appointmentDTO.setTherapistId(otherTherapistId);
+        appointmentDTO.setServiceId(service.findService(otherTherapistId).getServiceId());
+        service.addAppointment(appointmentDTO);
+
+        mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token)
+                        .header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$._embedded.appointmentList[0].client.name", is("John Doe")));
+    }
+
+    @Test
+    public void getAppointmentsByPages() throws Exception {
+        String token = getAccessToken();
+        AppointmentDTO appointmentDTO = createAppointment();
+        for (int hour = 11; hour < 13; hour++) {
+            appointmentDTO.setStartTime(LocalDate.now().plusDays(1).atTime(hour, 0));
+            service.addAppointment(appointmentDTO);
+        }
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+        String response = mvc.perform(get("/therapists/appointments").contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token)
+                        .param("from", LocalDate.now().plusDays(1).toString())
+                        .param("size", "2"))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$._embedded.appointmentList.length()", is(2)))
+                .andExpect(jsonPath("$._embedded.appointmentList[1].startTime",
+                        is(LocalDate.now().plusDays(1).atTime(11, 0).format(formatter))))
+                .andReturn().getResponse().getContentAsString();
+        String next = new JSONObject(response).getJSONObject("_links").getJSONObject("next").getString("href");
+
+        mvc.perform(get(URI.create(next)).contentType(MediaType.APPLICATION_JSON)
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$._embedded.appointmentList.length()", is(1)))
+                .andExpect(jsonPath("$._embedded.appointmentList[0].startTime",
+                        is(LocalDate.now().plusDays(1).atTime(12, 0).format(formatter))))
+                .andExpect(jsonPath("$._links.next").doesNotExist());
+    }
+
     @Test
     public void getAppointmentByDate() throws Exception {
         String token = getAccessToken();
@@ -221,6 +368,11 @@ public class TherapistControllerTest {
                         .content(objectMapper.writeValueAsString(serviceDTO)))
                 .andExpect(status().is(200))
                 .andExpect(jsonPath("$.name", is(serviceDTO.getName())));
+
+        List<LocalTime> availableTimes = service.findAvailableTimes(1L, LocalDate.now().plusDays(1));
+        assertEquals(45, availableTimes.size());
+        assertTrue(availableTimes.contains(LocalTime.of(10, 30)));
+        assertFalse(availableTimes.contains(LocalTime.of(10, 0)));
     }
 
     @Test
@@ -0,0 +1,105 @@
+package ru.set404.clients.repositories;
+
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.context.junit4.SpringRunner;
+import ru.set404.clients.ClientsApplication;
+
+import javax.sql.DataSource;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {ClientsApplication.class})
+@AutoConfigureMockMvc
+@TestPropertySource(locations = "classpath:application-test.properties")
+@ActiveProfiles("test")
+@Sql(scripts = {"classpath:delete-data.sql", "classpath:init-data.sql"})
+public class TherapistsRepositoryIndexTest {
+
+    private static final int THERAPISTS = 50;
+    private static final int DAYS = 365;
+
+    @Autowired
+    private DataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    public void appointmentsByDayUseTherapistStartIndex() {
+        LocalDate date = LocalDate.of(2023, 6, 1);
+        String plan = explain(TherapistsRepositorySQLImpl.APPOINTMENTS_BY_DAY_SQL,
+                7L, Timestamp.valueOf(date.atStartOfDay()), Timestamp.valueOf(date.plusDays(1).atStartOfDay()));
+        assertThat(plan, containsString("APPOINTMENTS_THERAPIST_START_UINDEX"));
+    }
+
+    @Test
+    public void availableDatesUseTherapistDateIndex() {
+        LocalDate month = LocalDate.of(2023, 6, 1);
+        String plan = explain(TherapistsRepositorySQLImpl.AVAILABLE_DATES_SQL,
+                7L, Date.valueOf(month), Date.valueOf(month.plusMonths(1)));
+        assertThat(plan, containsString("AVAILABILITY_THERAPIST_DATE_INDEX"));
+    }
+
+    @Test
+    public void availableTimesUseTherapistDateIndex() {
+        String plan = explain(TherapistsRepositorySQLImpl.SLOTS_OF_DAY_SQL, 7L, Date.valueOf(LocalDate.of(2023, 6, 1)));
+        assertThat(plan, containsString("AVAILABILITY_THERAPIST_DATE_INDEX"));
+    }
+
+    @Test
+    public void availabilityOfManyTherapistsUsesTherapistDateIndex() {
+        String plan = explain(TherapistsRepositorySQLImpl.SLOTS_OF_THERAPISTS_SQL,
+                new Long[]{3L, 7L, 11L}, Date.valueOf(LocalDate.of(2023, 6, 1)));
+        assertThat(plan, containsString("AVAILABILITY_THERAPIST_DATE_INDEX"));
+    }
+
+    @Test
+    public void clientByPhoneUsesPhoneIndex() {
+        String plan = explain(TherapistsRepositorySQLImpl.CLIENT_BY_PHONE_SQL, "8800000042");
+        assertThat(plan, containsString("CLIENTS_PHONE_UINDEX"));
+    }
+
+    @Test
+    public void therapistByPhoneUsesPhoneIndex() {
+        String plan = explain(TherapistsRepositorySQLImpl.THERAPIST_BY_PHONE_SQL, "8900000042");
+        assertThat(plan, containsString("THERAPISTS_PHONE_INDEX"));
+    }
+
+    @Before
+    public void createLargeDataset() {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO THERAPISTS (NAME, PHONE, PASSWORD, ROLE) " +
+                "SELECT 'Therapist' || X, '89' || LPAD(X, 8, '0'), 'password', 'USER' FROM SYSTEM_RANGE(1, ?)", THERAPISTS);
+        jdbcTemplate.update("INSERT INTO SERVICES (NAME, DESCRIPTION, DURATION, PRICE, THERAPIST_ID) " +
+                "SELECT 'Service', 'Description', 60, 5000, THERAPIST_ID FROM THERAPISTS");
+        jdbcTemplate.update("INSERT INTO CLIENTS (NAME, PHONE) " +
+                "SELECT 'Client' || X, '88' || LPAD(X, 8, '0') FROM SYSTEM_RANGE(1, ?)", THERAPISTS * DAYS);
+        jdbcTemplate.update("INSERT INTO AVAILABILITY (THERAPIST_ID, START_TIME, END_TIME, AVAILABLE_DATE) " +
+                "SELECT T.THERAPIST_ID, TIME '09:00:00', TIME '21:00:00', DATEADD(DAY, D.X, DATE '2023-01-01') " +
+                "FROM THERAPISTS T CROSS JOIN SYSTEM_RANGE(0, ?) D", DAYS - 1);
+        jdbcTemplate.update("INSERT INTO APPOINTMENTS (CLIENT_ID, THERAPIST_ID, SERVICE_ID, START_TIME) " +
+                "SELECT C.CLIENT_ID, S.THERAPIST_ID, S.SERVICE_ID, " +
+                "DATEADD(HOUR, 9 + C.CLIENT_ID / ?, CAST(DATEADD(DAY, MOD(C.CLIENT_ID, ?), DATE '2023-01-01') AS TIMESTAMP)) " +
+                "FROM CLIENTS C JOIN SERVICES S ON S.THERAPIST_ID = MOD(C.CLIENT_ID, ?) + 1",
+                DAYS * THERAPISTS / 5, DAYS, THERAPISTS);
+        jdbcTemplate.execute("ANALYZE");
+    }
+
+    private String explain(String sql, Object... args) {
+        return jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class, args);
+    }
+}
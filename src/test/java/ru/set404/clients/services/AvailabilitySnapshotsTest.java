@@ -0,0 +1,49 @@
+package ru.set404.clients.services;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class AvailabilitySnapshotsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final YearMonth month = YearMonth.now();
+    private final LocalDateTime validUntil = LocalDateTime.now().plusHours(1);
+
+    @Test
+    public void replacedFilesKeptWhileRetained() throws Exception {
+        AvailabilitySnapshots snapshots = new AvailabilitySnapshots(true, folder.getRoot().toString(), Duration.ofHours(1));
+        List<AvailabilitySnapshots.Snapshot> written = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            written.add(snapshots.write(1L, month, List.of(i), validUntil).orElseThrow());
+
+        for (AvailabilitySnapshots.Snapshot snapshot : written) {
+            assertTrue(snapshot.json().toFile().exists());
+            assertTrue(snapshot.gzip().toFile().exists());
+        }
+    }
+
+    @Test
+    public void replacedFilesDeletedOnceRetentionPassed() throws Exception {
+        AvailabilitySnapshots snapshots = new AvailabilitySnapshots(true, folder.getRoot().toString(), Duration.ZERO);
+        AvailabilitySnapshots.Snapshot first = snapshots.write(1L, month, List.of(1), validUntil).orElseThrow();
+        AvailabilitySnapshots.Snapshot second = snapshots.write(1L, month, List.of(2), validUntil).orElseThrow();
+
+        assertFalse(first.json().toFile().exists());
+        assertFalse(first.gzip().toFile().exists());
+        assertTrue(second.json().toFile().exists());
+    }
+}
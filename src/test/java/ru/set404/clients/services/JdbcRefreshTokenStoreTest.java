@@ -0,0 +1,76 @@
+package ru.set404.clients.services;
+
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.context.junit4.SpringRunner;
+import ru.set404.clients.ClientsApplication;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {ClientsApplication.class})
+@AutoConfigureMockMvc
+@TestPropertySource(locations = "classpath:application-test.properties")
+@ActiveProfiles("test")
+@Sql(scripts = {"classpath:delete-data.sql", "classpath:init-data.sql"})
+public class JdbcRefreshTokenStoreTest {
+
+    private static final String LOGIN = "88005553535";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private JdbcRefreshTokenStore store;
+    private JdbcRefreshTokenStore otherNode;
+    private final Instant expiresAt = Instant.now().plus(Duration.ofDays(1));
+
+    @Before
+    public void createStores() {
+        store = new JdbcRefreshTokenStore(jdbcTemplate, 100, Duration.ofSeconds(10), Duration.ZERO);
+        otherNode = new JdbcRefreshTokenStore(jdbcTemplate, 100, Duration.ofSeconds(10), Duration.ZERO);
+    }
+
+    @Test
+    public void savedTokenMatchesOnEveryNodeAndIsStoredHashed() {
+        store.save(LOGIN, "first", expiresAt);
+
+        assertTrue(otherNode.matches(LOGIN, "first"));
+        assertFalse(otherNode.matches(LOGIN, "second"));
+        assertEquals(RefreshTokenStore.hash("first"), jdbcTemplate.queryForObject(
+                "SELECT TOKEN_HASH FROM REFRESH_TOKENS WHERE LOGIN = ?", String.class, LOGIN));
+    }
+
+    @Test
+    public void rotationSucceedsOnce() {
+        store.save(LOGIN, "first", expiresAt);
+
+        assertTrue(otherNode.rotate(LOGIN, "first", "second", expiresAt));
+        assertFalse(store.rotate(LOGIN, "first", "third", expiresAt));
+        assertTrue(store.matches(LOGIN, "second"));
+    }
+
+    @Test
+    public void expiredTokensDoNotMatchAndArePurged() {
+        store.save(LOGIN, "first", Instant.now().minusSeconds(1));
+
+        assertFalse(otherNode.matches(LOGIN, "first"));
+        assertFalse(otherNode.rotate(LOGIN, "first", "second", expiresAt));
+        store.save("88005553536", "other", expiresAt);
+        assertEquals(Integer.valueOf(1), jdbcTemplate.queryForObject("SELECT COUNT(*) FROM REFRESH_TOKENS", Integer.class));
+    }
+}
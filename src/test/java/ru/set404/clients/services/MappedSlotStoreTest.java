@@ -0,0 +1,137 @@
+package ru.set404.clients.services;
+
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.context.junit4.SpringRunner;
+import ru.set404.clients.ClientsApplication;
+import ru.set404.clients.dto.ServiceDTO;
+import ru.set404.clients.models.Availability;
+import ru.set404.clients.models.Role;
+import ru.set404.clients.models.SlotGrid;
+import ru.set404.clients.models.Therapist;
+import ru.set404.clients.repositories.TherapistsRepository;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {ClientsApplication.class})
+@AutoConfigureMockMvc
+@TestPropertySource(locations = "classpath:application-test.properties")
+@ActiveProfiles("test")
+@Sql(scripts = {"classpath:delete-data.sql", "classpath:init-data.sql"})
+public class MappedSlotStoreTest {
+
+    private static final int HORIZON = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Autowired
+    private TherapistsRepository repository;
+    @Autowired
+    private RegistrationService registrationService;
+    @Autowired
+    private TherapistService service;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private String path;
+    private Long therapistId;
+    private final LocalDate tomorrow = LocalDate.now().plusDays(1);
+
+    @Test
+    public void calendarSurvivesCleanRestart() {
+        MappedSlotStore store = open();
+        assertEquals(23, store.findSlotGrid(therapistId, tomorrow).orElseThrow().getAvailableTimes().size());
+        store.close();
+
+        jdbcTemplate.update("DELETE FROM AVAILABILITY WHERE THERAPIST_ID = ?", therapistId);
+        assertEquals(23, open().findSlotGrid(therapistId, tomorrow).orElseThrow().getAvailableTimes().size());
+    }
+
+    @Test
+    public void calendarIsLoadedAgainAfterCrash() {
+        open().findSlotGrid(therapistId, tomorrow).orElseThrow();
+
+        jdbcTemplate.update("DELETE FROM AVAILABILITY WHERE THERAPIST_ID = ?", therapistId);
+        assertTrue(open().findSlotGrid(therapistId, tomorrow).isEmpty());
+    }
+
+    @Test(timeout = 10_000)
+    public void writeCutOffByCrashDoesNotBlockReaders() throws IOException {
+        open().findSlotGrid(therapistId, tomorrow).orElseThrow();
+        // odd sequence words, as left by writers that died between their two stores
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            for (int slot = 0; slot < HORIZON; slot++) {
+                file.seek(64 + slot * 32L);
+                file.writeInt(0x01010101);
+            }
+        }
+
+        assertEquals(23, open().findSlotGrid(therapistId, tomorrow).orElseThrow().getAvailableTimes().size());
+    }
+
+    @Test
+    public void reloadWritesBookedSlots() {
+        MappedSlotStore store = open();
+        SlotGrid grid = store.findSlotGrid(therapistId, tomorrow).orElseThrow();
+        assertFalse(grid.isBooked(grid.indexOf(LocalTime.of(10, 0))));
+
+        jdbcTemplate.update("UPDATE AVAILABILITY SET SLOT_MASK = ? WHERE THERAPIST_ID = ? AND AVAILABLE_DATE = ?",
+                grid.book(grid.indexOf(LocalTime.of(10, 0))).toMask(), therapistId, tomorrow);
+        assertFalse(store.findSlotGrid(therapistId, tomorrow).orElseThrow().isBooked(10));
+
+        store.reload(therapistId, tomorrow, tomorrow.plusDays(1));
+        assertTrue(store.findSlotGrid(therapistId, tomorrow).orElseThrow().isBooked(10));
+    }
+
+    @Test
+    public void daysBeyondHorizonAreReadFromDatabase() {
+        LocalDate farDay = LocalDate.now().plusDays(HORIZON + 5);
+        Availability availability = new Availability();
+        availability.setDate(farDay);
+        availability.setStartTime(LocalTime.of(10, 0));
+        availability.setEndTime(LocalTime.of(12, 0));
+        service.addAvailableTime(therapistId, availability);
+
+        List<SlotGrid> grids = open().findSlotGrids(therapistId, tomorrow, farDay.plusDays(1));
+        assertEquals(List.of(tomorrow, farDay), grids.stream().map(SlotGrid::getDate).toList());
+    }
+
+    private MappedSlotStore open() {
+        return new MappedSlotStore(repository, path, HORIZON, 16);
+    }
+
+    @Before
+    public void createTestTherapist() throws IOException {
+        path = folder.newFile("slots.dat").toString();
+        Therapist therapist = new Therapist("Bob", "88005553535", "qwerty", Role.USER);
+        therapistId = registrationService.saveTherapist(therapist);
+        service.addOrUpdateService(therapistId, new ServiceDTO("Name", "Description", 60, 5000));
+        Availability availability = new Availability();
+        availability.setDate(tomorrow);
+        availability.setStartTime(LocalTime.of(0, 0));
+        availability.setEndTime(LocalTime.of(23, 0));
+        service.addAvailableTime(therapistId, availability);
+    }
+}
@@ -1,3 +1,4 @@
+DROP TABLE IF EXISTS refresh_tokens;
 DROP TABLE IF EXISTS appointments;
 DROP TABLE IF EXISTS services;
 DROP TABLE IF EXISTS availability;
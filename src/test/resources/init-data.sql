@@ -13,7 +13,9 @@ create table THERAPISTS
     NAME         CHARACTER VARYING(50)  not null,
     PHONE        CHARACTER VARYING(20)  not null,
     PASSWORD     CHARACTER VARYING(255) not null,
-    ROLE         CHARACTER VARYING(255) not null
+    ROLE         CHARACTER VARYING(255) not null,
+    TOKEN_VERSION INTEGER default 0 not null,
+    CALENDAR_VERSION BIGINT default 0 not null
 );
 
 create table AVAILABILITY
@@ -25,7 +27,8 @@ create table AVAILABILITY
     START_TIME      TIME    not null,
     END_TIME        TIME    not null,
     AVAILABLE_DATE  DATE    not null,
-    ISFULL          BOOLEAN default FALSE
+    ISFULL          BOOLEAN default FALSE,
+    SLOT_MASK       BINARY VARYING(180)
 );
 
 create table SERVICES
@@ -53,3 +56,17 @@ create table APPOINTMENTS
     START_TIME     TIMESTAMP not null
 );
 
+create table REFRESH_TOKENS
+(
+    LOGIN      CHARACTER VARYING(20) not null
+        primary key,
+    TOKEN_HASH CHARACTER VARYING(64) not null,
+    EXPIRES_AT TIMESTAMP             not null
+);
+
+create unique index if not exists APPOINTMENTS_THERAPIST_START_UINDEX on APPOINTMENTS (THERAPIST_ID, START_TIME);
+create index if not exists AVAILABILITY_THERAPIST_DATE_INDEX on AVAILABILITY (THERAPIST_ID, AVAILABLE_DATE);
+create unique index if not exists CLIENTS_PHONE_UINDEX on CLIENTS (PHONE);
+create index if not exists THERAPISTS_PHONE_INDEX on THERAPISTS (PHONE);
+create index if not exists SERVICES_THERAPIST_INDEX on SERVICES (THERAPIST_ID);
+create index if not exists REFRESH_TOKENS_EXPIRES_INDEX on REFRESH_TOKENS (EXPIRES_AT);